@@ -0,0 +1,72 @@
+package com.nedap.dbcleaner.benchmarks;
+
+import com.nedap.dbcleaner.DBCleaner;
+import com.nedap.dbcleaner.TransactionUtil;
+import com.nedap.dbcleaner.TransactionWrappedConnection;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of opening and closing a connection through DBCleaner, before and after startTransactions(). Before, every
+ * connection opens an underlying connection of its own; after, it is routed to the shared one. Also with the resolved
+ * driver looked up again every time, as before the driver cache existed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectBenchmark {
+
+    static final String URL = "jdbc:dbcleaner:hsqldb:mem:benchmark";
+
+    @Param({"true", "false"})
+    public boolean driverCache;
+
+    @Param({"false", "true"})
+    public boolean forced;
+
+    @Setup
+    public void setup() throws Exception {
+        Class.forName("com.nedap.dbcleaner.DBCleaner");
+        DriverManager.getConnection(URL).close();
+        if (forced) {
+            TransactionUtil.startTransactions();
+        }
+    }
+
+    @TearDown
+    public void teardown() throws SQLException {
+        if (forced) {
+            TransactionUtil.rollbackTransactions();
+        }
+        for (TransactionWrappedConnection connection : TransactionWrappedConnection.getOpenConnections()) {
+            connection.forceClose();
+        }
+    }
+
+    @Benchmark
+    public Connection connect() throws SQLException {
+        if (!driverCache) {
+            DBCleaner.clearDriverCache();
+        }
+        Connection connection = DriverManager.getConnection(URL);
+        connection.close();
+        return connection;
+    }
+}
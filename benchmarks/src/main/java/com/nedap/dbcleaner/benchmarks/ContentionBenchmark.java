@@ -0,0 +1,90 @@
+package com.nedap.dbcleaner.benchmarks;
+
+import com.nedap.dbcleaner.TransactionUtil;
+import com.nedap.dbcleaner.TransactionWrappedConnection;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of queries from several threads, each with its own DBCleaner connection, that all take turns on the
+ * shared connection after startTransactions(). Run with -t to vary the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContentionBenchmark {
+
+    static final String URL = "jdbc:dbcleaner:hsqldb:mem:contention";
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            Class.forName("com.nedap.dbcleaner.DBCleaner");
+            Connection connection = DriverManager.getConnection(URL);
+            connection.createStatement().execute("CREATE TABLE IF NOT EXISTS test (id int, name varchar(255))");
+            connection.createStatement().execute("INSERT INTO test VALUES (1, 'one')");
+            connection.close();
+            TransactionUtil.startTransactions();
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws SQLException {
+            TransactionUtil.rollbackTransactions();
+            for (TransactionWrappedConnection shared : TransactionWrappedConnection.getOpenConnections()) {
+                shared.forceClose();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+
+        Connection connection;
+        PreparedStatement select;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared) throws SQLException {
+            connection = DriverManager.getConnection(URL);
+            select = connection.prepareStatement("SELECT name FROM test WHERE id = ?");
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws SQLException {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public String query(PerThread state) throws SQLException {
+        state.select.setInt(1, 1);
+        ResultSet result = state.select.executeQuery();
+        try {
+            result.next();
+            return result.getString(1);
+        } finally {
+            result.close();
+        }
+    }
+}
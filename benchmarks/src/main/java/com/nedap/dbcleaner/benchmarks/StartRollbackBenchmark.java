@@ -0,0 +1,76 @@
+package com.nedap.dbcleaner.benchmarks;
+
+import com.nedap.dbcleaner.TransactionUtil;
+import com.nedap.dbcleaner.TransactionWrappedConnection;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of one test's worth of cleaning: startTransactions(), one insert, rollbackTransactions(), as the number of
+ * open DBCleaner connections grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartRollbackBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int openConnections;
+
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    @Setup
+    public void setup() throws Exception {
+        Class.forName("com.nedap.dbcleaner.DBCleaner");
+        for (int i = 0; i < openConnections; i++) {
+            connections.add(DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:startrollback"));
+        }
+        try (Statement statement = connections.get(0).createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS test (id int, name varchar(255))");
+        }
+    }
+
+    @TearDown
+    public void teardown() throws SQLException {
+        try (Statement statement = connections.get(0).createStatement()) {
+            statement.execute("DROP TABLE test");
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+        for (TransactionWrappedConnection shared : TransactionWrappedConnection.getOpenConnections()) {
+            shared.forceClose();
+        }
+    }
+
+    @Benchmark
+    public void startInsertRollback() throws SQLException {
+        TransactionUtil.startTransactions();
+        try (Statement statement = connections.get(0).createStatement()) {
+            statement.executeUpdate("INSERT INTO test VALUES (1, 'one')");
+        } finally {
+            TransactionUtil.rollbackTransactions();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.nedap.dbcleaner.benchmarks;
+
+import com.nedap.dbcleaner.TransactionUtil;
+import com.nedap.dbcleaner.TransactionWrappedConnection;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the wrapper chain per call: a raw HSQLDB connection, a DBCleaner connection with its own underlying
+ * connection, and a DBCleaner connection routed to the shared connection after startTransactions().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WrapperOverheadBenchmark {
+
+    @Param({"raw", "wrapped", "forced"})
+    public String connectionType;
+
+    private Connection connection;
+    private PreparedStatement select;
+
+    @Setup
+    public void setup() throws Exception {
+        Class.forName("com.nedap.dbcleaner.DBCleaner");
+        if ("raw".equals(connectionType)) {
+            connection = DriverManager.getConnection("jdbc:hsqldb:mem:overhead");
+        } else {
+            connection = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:overhead");
+        }
+        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS test (id int, name varchar(255))");
+        connection.createStatement().execute("INSERT INTO test VALUES (1, 'one')");
+        if ("forced".equals(connectionType)) {
+            TransactionUtil.startTransactions();
+        }
+        select = connection.prepareStatement("SELECT name FROM test WHERE id = ?");
+    }
+
+    @TearDown
+    public void teardown() throws SQLException {
+        if ("forced".equals(connectionType)) {
+            TransactionUtil.rollbackTransactions();
+        }
+        connection.createStatement().execute("DROP TABLE test");
+        connection.close();
+        for (TransactionWrappedConnection shared : TransactionWrappedConnection.getOpenConnections()) {
+            shared.forceClose();
+        }
+    }
+
+    @Benchmark
+    public boolean getAutoCommit() throws SQLException {
+        return connection.getAutoCommit();
+    }
+
+    @Benchmark
+    public String executePreparedQuery() throws SQLException {
+        select.setInt(1, 1);
+        ResultSet result = select.executeQuery();
+        try {
+            result.next();
+            return result.getString(1);
+        } finally {
+            result.close();
+        }
+    }
+}
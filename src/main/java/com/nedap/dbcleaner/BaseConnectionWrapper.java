@@ -6,6 +6,7 @@ import java.sql.*;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Wraps a JDBC Connection without any extra functionality, except for generating a connection number.
@@ -14,7 +15,12 @@ import java.util.concurrent.Executor;
  */
 public class BaseConnectionWrapper implements Connection {
 
-    protected Connection realConnection;
+    protected volatile Connection realConnection;
+    /**
+     * Guards the underlying connection. This is an explicit lock instead of synchronized methods, because a virtual
+     * thread that blocks on or inside a monitor pins its carrier thread for the duration of the JDBC call.
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Get the underlying connection
@@ -47,216 +53,542 @@ public class BaseConnectionWrapper implements Connection {
         return connectionNumber;
     }
 
+    /**
+     * Acquire exclusive use of the underlying connection for the current thread. Every call to this method must be
+     * followed by a call to {@link #release()}.
+     *
+     * @throws SQLException if the connection could not be acquired
+     */
+    protected void acquire() throws SQLException {
+        lock.lock();
+    }
+
+    /**
+     * Give up the use of the underlying connection acquired with {@link #acquire()}.
+     */
+    protected void release() {
+        lock.unlock();
+    }
+
+    private void acquireForClientInfo() throws SQLClientInfoException {
+        try {
+            acquire();
+        } catch (SQLClientInfoException ex) {
+            throw ex;
+        } catch (SQLException ex) {
+            throw new SQLClientInfoException(ex.getMessage(), ex.getSQLState(), ex.getErrorCode(), null, ex);
+        }
+    }
+
+    /**
+     * @return whether the underlying connection may still be replaced by another one. While it may, the statements
+     * created by this connection record their settings and parameters, so they can be created again on the new
+     * underlying connection. False by default.
+     */
+    protected boolean mayReplaceRealConnection() {
+        return false;
+    }
+
+    /**
+     * Called by the statements created by this connection, right before they execute the given SQL. Does nothing by
+     * default. If this method returns normally, {@link #afterExecute(String)} is called when the execution is done.
+     *
+     * @param sql the SQL that is about to be executed
+     * @throws SQLException to prevent the SQL from being executed
+     */
+    protected void beforeExecute(String sql) throws SQLException {
+    }
+
+    /**
+     * Called by the statements created by this connection after they executed the given SQL, whether it succeeded or
+     * not. Does nothing by default.
+     *
+     * @param sql the SQL that was executed
+     */
+    protected void afterExecute(String sql) {
+    }
+
+    /**
+     * @return the statistics the statements created by this connection add their execution times to, or null if they
+     * are not timed, which is the default
+     */
+    protected StatementStatistics statementStatistics() {
+        return null;
+    }
+
+    /**
+     * @return the cache the statements created by this connection look up the results of their queries in, or null if
+     * results are not cached, which is the default
+     */
+    protected ResultCache resultCache() {
+        return null;
+    }
+
+    /**
+     * @return the recorder the statements created by this connection record their executions with, or null if the
+     * workload is not recorded, which is the default
+     */
+    WorkloadRecorder workloadRecorder() {
+        return null;
+    }
+
     // forwarding methods
     @Override
-    public synchronized boolean isClosed() throws SQLException {
-        return realConnection.isClosed();
+    public boolean isClosed() throws SQLException {
+        acquire();
+        try {
+            return realConnection.isClosed();
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized SQLWarning getWarnings() throws SQLException {
-        return realConnection.getWarnings();
+    public SQLWarning getWarnings() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getWarnings();
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized Savepoint setSavepoint() throws SQLException {
-        return realConnection.setSavepoint();
+    public Savepoint setSavepoint() throws SQLException {
+        acquire();
+        try {
+            return realConnection.setSavepoint();
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        realConnection.releaseSavepoint(savepoint);
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        acquire();
+        try {
+            realConnection.releaseSavepoint(savepoint);
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized void rollback(Savepoint savepoint) throws SQLException {
-        realConnection.rollback(savepoint);
+    public void rollback(Savepoint savepoint) throws SQLException {
+        acquire();
+        try {
+            realConnection.rollback(savepoint);
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized DatabaseMetaData getMetaData() throws SQLException {
-        return realConnection.getMetaData();
+    public DatabaseMetaData getMetaData() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getMetaData();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void clearWarnings() throws SQLException {
-        realConnection.clearWarnings();
+    public void clearWarnings() throws SQLException {
+        acquire();
+        try {
+            realConnection.clearWarnings();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Statement createStatement() throws SQLException {
-        return realConnection.createStatement();
+    public Statement createStatement() throws SQLException {
+        acquire();
+        try {
+            return new StatementWrapper(this, c -> c.createStatement());
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        return realConnection.createStatement(resultSetType, resultSetConcurrency);
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        acquire();
+        try {
+            return new StatementWrapper(this, c -> c.createStatement(resultSetType, resultSetConcurrency));
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return realConnection.createStatement(resultSetType, resultSetConcurrency,
-                resultSetHoldability);
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        acquire();
+        try {
+            return new StatementWrapper(this,
+                    c -> c.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setReadOnly(boolean readOnly) throws SQLException {
-        realConnection.setReadOnly(readOnly);
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        acquire();
+        try {
+            realConnection.setReadOnly(readOnly);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql) throws SQLException {
-        return realConnection.prepareStatement(sql);
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this, c -> c.prepareStatement(sql), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return realConnection.prepareStatement(sql, autoGeneratedKeys);
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this, c -> c.prepareStatement(sql, autoGeneratedKeys), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return realConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this,
+                    c -> c.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
             int resultSetHoldability) throws SQLException {
-        return realConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this,
+                    c -> c.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql, int columnIndexes[]) throws SQLException {
-        return realConnection.prepareStatement(sql, columnIndexes);
+    public PreparedStatement prepareStatement(String sql, int columnIndexes[]) throws SQLException {
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this, c -> c.prepareStatement(sql, columnIndexes), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Savepoint setSavepoint(String name) throws SQLException {
-        return realConnection.setSavepoint(name);
+    public Savepoint setSavepoint(String name) throws SQLException {
+        acquire();
+        try {
+            return realConnection.setSavepoint(name);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized PreparedStatement prepareStatement(String sql, String columnNames[]) throws SQLException {
-        return realConnection.prepareStatement(sql, columnNames);
+    public PreparedStatement prepareStatement(String sql, String columnNames[]) throws SQLException {
+        acquire();
+        try {
+            return new PreparedStatementWrapper(this, c -> c.prepareStatement(sql, columnNames), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Clob createClob() throws SQLException {
-        return realConnection.createClob();
+    public Clob createClob() throws SQLException {
+        acquire();
+        try {
+            return realConnection.createClob();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Blob createBlob() throws SQLException {
-        return realConnection.createBlob();
+    public Blob createBlob() throws SQLException {
+        acquire();
+        try {
+            return realConnection.createBlob();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized NClob createNClob() throws SQLException {
-        return realConnection.createNClob();
+    public NClob createNClob() throws SQLException {
+        acquire();
+        try {
+            return realConnection.createNClob();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized SQLXML createSQLXML() throws SQLException {
-        return realConnection.createSQLXML();
+    public SQLXML createSQLXML() throws SQLException {
+        acquire();
+        try {
+            return realConnection.createSQLXML();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized boolean isValid(int timeout) throws SQLException {
-        return realConnection.isValid(timeout);
+    public boolean isValid(int timeout) throws SQLException {
+        acquire();
+        try {
+            return realConnection.isValid(timeout);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setClientInfo(String name, String value) throws SQLClientInfoException {
-        realConnection.setClientInfo(name, value);
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        acquireForClientInfo();
+        try {
+            realConnection.setClientInfo(name, value);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setClientInfo(Properties properties) throws SQLClientInfoException {
-        realConnection.setClientInfo(properties);
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        acquireForClientInfo();
+        try {
+            realConnection.setClientInfo(properties);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized String getClientInfo(String name) throws SQLException {
-        return realConnection.getClientInfo(name);
+    public String getClientInfo(String name) throws SQLException {
+        acquire();
+        try {
+            return realConnection.getClientInfo(name);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Properties getClientInfo() throws SQLException {
-        return realConnection.getClientInfo();
+    public Properties getClientInfo() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getClientInfo();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Array createArrayOf(String typeName, Object[] elements) throws SQLException {
-        return realConnection.createArrayOf(typeName, elements);
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        acquire();
+        try {
+            return realConnection.createArrayOf(typeName, elements);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Struct createStruct(String typeName, Object[] attributes) throws SQLException {
-        return realConnection.createStruct(typeName, attributes);
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        acquire();
+        try {
+            return realConnection.createStruct(typeName, attributes);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized boolean isReadOnly() throws SQLException {
-        return realConnection.isReadOnly();
+    public boolean isReadOnly() throws SQLException {
+        acquire();
+        try {
+            return realConnection.isReadOnly();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setHoldability(int holdability) throws SQLException {
-        realConnection.setHoldability(holdability);
+    public void setHoldability(int holdability) throws SQLException {
+        acquire();
+        try {
+            realConnection.setHoldability(holdability);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized CallableStatement prepareCall(String sql) throws SQLException {
-        return realConnection.prepareCall(sql);
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        acquire();
+        try {
+            return new CallableStatementWrapper(this, c -> c.prepareCall(sql), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return realConnection.prepareCall(sql, resultSetType, resultSetConcurrency);
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        acquire();
+        try {
+            return new CallableStatementWrapper(this,
+                    c -> c.prepareCall(sql, resultSetType, resultSetConcurrency), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency,
             int resultSetHoldability) throws SQLException {
-        return realConnection.prepareCall(sql, resultSetType, resultSetConcurrency,
-                resultSetHoldability);
+        acquire();
+        try {
+            return new CallableStatementWrapper(this,
+                    c -> c.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setCatalog(String catalog) throws SQLException {
-        realConnection.setCatalog(catalog);
+    public void setCatalog(String catalog) throws SQLException {
+        acquire();
+        try {
+            realConnection.setCatalog(catalog);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized String nativeSQL(String sql) throws SQLException {
-        return realConnection.nativeSQL(sql);
+    public String nativeSQL(String sql) throws SQLException {
+        acquire();
+        try {
+            return realConnection.nativeSQL(sql);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized Map<String, Class<?>> getTypeMap() throws SQLException {
-        return realConnection.getTypeMap();
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getTypeMap();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setAutoCommit(boolean autoCommit) throws SQLException {
-        realConnection.setAutoCommit(autoCommit);
-
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        acquire();
+        try {
+            realConnection.setAutoCommit(autoCommit);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized String getCatalog() throws SQLException {
-        return realConnection.getCatalog();
+    public String getCatalog() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getCatalog();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setTypeMap(java.util.Map<String, Class<?>> map) throws SQLException {
-        realConnection.setTypeMap(map);
+    public void setTypeMap(java.util.Map<String, Class<?>> map) throws SQLException {
+        acquire();
+        try {
+            realConnection.setTypeMap(map);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setTransactionIsolation(int level) throws SQLException {
-        realConnection.setTransactionIsolation(level);
+    public void setTransactionIsolation(int level) throws SQLException {
+        acquire();
+        try {
+            realConnection.setTransactionIsolation(level);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized boolean getAutoCommit() throws SQLException {
-        return realConnection.getAutoCommit();
+    public boolean getAutoCommit() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getAutoCommit();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized int getHoldability() throws SQLException {
-        return realConnection.getHoldability();
+    public int getHoldability() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getHoldability();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized int getTransactionIsolation() throws SQLException {
-        return realConnection.getTransactionIsolation();
+    public int getTransactionIsolation() throws SQLException {
+        acquire();
+        try {
+            return realConnection.getTransactionIsolation();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void commit() throws SQLException {
-        realConnection.commit();
+    public void commit() throws SQLException {
+        acquire();
+        try {
+            realConnection.commit();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void rollback() throws SQLException {
-        realConnection.rollback();
+    public void rollback() throws SQLException {
+        acquire();
+        try {
+            realConnection.rollback();
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void close() throws SQLException {
-        realConnection.close();
+    public void close() throws SQLException {
+        acquire();
+        try {
+            realConnection.close();
+        } finally {
+            release();
+        }
     }
 
     @Override
-    public synchronized <T> T unwrap(Class<T> iface) throws SQLException {
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        acquire();
+        try {
 
-        String methodCall = "unwrap(" + (iface == null ? "null" : iface.getName()) + ")";
-        return (iface != null && (iface == Connection.class)) ? (T) this : realConnection.unwrap(iface);
+            String methodCall = "unwrap(" + (iface == null ? "null" : iface.getName()) + ")";
+            return (iface != null && (iface == Connection.class)) ? (T) this : realConnection.unwrap(iface);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return (iface != null && (iface == Connection.class))
-                || realConnection.isWrapperFor(iface);
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        acquire();
+        try {
+            return (iface != null && (iface == Connection.class))
+                    || realConnection.isWrapperFor(iface);
+        } finally {
+            release();
+        }
     }
 
     private Object invokeMethod(String name, Object... params) {
@@ -281,23 +613,48 @@ public class BaseConnectionWrapper implements Connection {
         }
     }
 
-    public synchronized void setSchema(String schema) throws SQLException {
-        invokeMethod("setSchema", schema);
+    public void setSchema(String schema) throws SQLException {
+        acquire();
+        try {
+            invokeMethod("setSchema", schema);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized String getSchema() throws SQLException {
-        return (String) invokeMethod("getSchema", new Object[0]);
+    public String getSchema() throws SQLException {
+        acquire();
+        try {
+            return (String) invokeMethod("getSchema", new Object[0]);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void abort(Executor executor) throws SQLException {
-        invokeMethod("abort", executor);
+    public void abort(Executor executor) throws SQLException {
+        acquire();
+        try {
+            invokeMethod("abort", executor);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
-        invokeMethod("setNetworkTimeout", executor, milliseconds);
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        acquire();
+        try {
+            invokeMethod("setNetworkTimeout", executor, milliseconds);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized int getNetworkTimeout() throws SQLException {
-        return (Integer) invokeMethod("setNetworkTimeout", new Object[0]);
+    public int getNetworkTimeout() throws SQLException {
+        acquire();
+        try {
+            return (Integer) invokeMethod("setNetworkTimeout", new Object[0]);
+        } finally {
+            release();
+        }
     }
 }
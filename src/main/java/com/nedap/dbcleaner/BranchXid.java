@@ -0,0 +1,52 @@
+package com.nedap.dbcleaner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.transaction.xa.Xid;
+
+/**
+ * Identifies the part of a forced transaction on one underlying XA connection. All parts of the same forced
+ * transaction share the global transaction id, so they can be committed together.
+ */
+class BranchXid implements Xid {
+
+    private static final int FORMAT_ID = 0x4e444243;
+
+    private final byte[] globalTransactionId;
+    private final byte[] branchQualifier;
+
+    BranchXid(byte[] globalTransactionId, int connectionNumber) {
+        this.globalTransactionId = globalTransactionId;
+        this.branchQualifier = ByteBuffer.allocate(4).putInt(connectionNumber).array();
+    }
+
+    @Override
+    public int getFormatId() {
+        return FORMAT_ID;
+    }
+
+    @Override
+    public byte[] getGlobalTransactionId() {
+        return globalTransactionId.clone();
+    }
+
+    @Override
+    public byte[] getBranchQualifier() {
+        return branchQualifier.clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof Xid) {
+            Xid o = (Xid) other;
+            return o.getFormatId() == FORMAT_ID && Arrays.equals(globalTransactionId, o.getGlobalTransactionId())
+                    && Arrays.equals(branchQualifier, o.getBranchQualifier());
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(globalTransactionId) * 31 + Arrays.hashCode(branchQualifier);
+    }
+}
@@ -0,0 +1,87 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A prepared statement taken from a {@link StatementCache}. Closing it puts the underlying statement back into the
+ * cache, unless its settings were changed.
+ */
+class CachedPreparedStatementWrapper extends PreparedStatementWrapper {
+
+    private final StatementCache cache;
+    private final StatementCache.Key key;
+    /**
+     * Whether a setting that survives clearParameters() was changed, so the statement must not be handed out again
+     */
+    private boolean settingsChanged = false;
+
+    CachedPreparedStatementWrapper(BaseConnectionWrapper connection, final StatementCache cache,
+            final StatementCache.Key key, final StatementFactory<? extends PreparedStatement> factory, String sql)
+            throws SQLException {
+        super(connection, c -> cache.checkout(key, c, factory), sql);
+        this.cache = cache;
+        this.key = key;
+    }
+
+    @Override
+    protected void closeRealStatement(Statement realStatement, Connection realConnection) throws SQLException {
+        cache.checkin(key, realConnection, (PreparedStatement) realStatement, !settingsChanged);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        settingsChanged = true;
+        super.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        settingsChanged = true;
+        super.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        settingsChanged = true;
+        super.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        settingsChanged = true;
+        super.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        settingsChanged = true;
+        super.setCursorName(name);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        settingsChanged = true;
+        super.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        settingsChanged = true;
+        super.setFetchSize(rows);
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        settingsChanged = true;
+        super.setPoolable(poolable);
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        settingsChanged = true;
+        super.closeOnCompletion();
+    }
+}
@@ -0,0 +1,702 @@
+package com.nedap.dbcleaner;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a JDBC CallableStatement, so procedure calls are seen, timed and prepared again like the other statements of
+ * the connection wrapper that created it. Parameters set by name and registered out parameters are recorded as well,
+ * but only the values of parameters set by index are recorded in the workload.
+ *
+ * The results of calls are never taken from or put into the result cache, because a procedure may write.
+ */
+public class CallableStatementWrapper extends PreparedStatementWrapper implements CallableStatement {
+
+    /**
+     * The registered out parameters, by index or name
+     */
+    private final Map<Object, Setting<CallableStatement>> outParameters
+            = new LinkedHashMap<Object, Setting<CallableStatement>>();
+
+    public CallableStatementWrapper(BaseConnectionWrapper connection,
+            StatementFactory<? extends CallableStatement> factory, String sql) throws SQLException {
+        super(connection, factory, sql);
+    }
+
+    protected CallableStatement currentCallable() throws SQLException {
+        return (CallableStatement) current();
+    }
+
+    @Override
+    protected void replay(Statement newStatement) throws SQLException {
+        super.replay(newStatement);
+        for (Setting<CallableStatement> parameter : outParameters.values()) {
+            parameter.apply((CallableStatement) newStatement);
+        }
+    }
+
+    @Override
+    protected void forget() {
+        super.forget();
+        outParameters.clear();
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return timed(currentPrepared().executeQuery(), sql);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public void registerOutParameter(int parameterIndex, int sqlType) throws SQLException {
+        currentCallable().registerOutParameter(parameterIndex, sqlType);
+        if (recording) {
+            outParameters.put(parameterIndex, s -> s.registerOutParameter(parameterIndex, sqlType));
+        }
+    }
+
+    @Override
+    public void registerOutParameter(int parameterIndex, int sqlType, int scale) throws SQLException {
+        currentCallable().registerOutParameter(parameterIndex, sqlType, scale);
+        if (recording) {
+            outParameters.put(parameterIndex, s -> s.registerOutParameter(parameterIndex, sqlType, scale));
+        }
+    }
+
+    @Override
+    public void registerOutParameter(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        currentCallable().registerOutParameter(parameterIndex, sqlType, typeName);
+        if (recording) {
+            outParameters.put(parameterIndex, s -> s.registerOutParameter(parameterIndex, sqlType, typeName));
+        }
+    }
+
+    @Override
+    public void registerOutParameter(String parameterName, int sqlType) throws SQLException {
+        currentCallable().registerOutParameter(parameterName, sqlType);
+        if (recording) {
+            outParameters.put(parameterName, s -> s.registerOutParameter(parameterName, sqlType));
+        }
+    }
+
+    @Override
+    public void registerOutParameter(String parameterName, int sqlType, int scale) throws SQLException {
+        currentCallable().registerOutParameter(parameterName, sqlType, scale);
+        if (recording) {
+            outParameters.put(parameterName, s -> s.registerOutParameter(parameterName, sqlType, scale));
+        }
+    }
+
+    @Override
+    public void registerOutParameter(String parameterName, int sqlType, String typeName) throws SQLException {
+        currentCallable().registerOutParameter(parameterName, sqlType, typeName);
+        if (recording) {
+            outParameters.put(parameterName, s -> s.registerOutParameter(parameterName, sqlType, typeName));
+        }
+    }
+
+    @Override
+    public boolean wasNull() throws SQLException {
+        return currentCallable().wasNull();
+    }
+
+    @Override
+    public String getString(int parameterIndex) throws SQLException {
+        return currentCallable().getString(parameterIndex);
+    }
+
+    @Override
+    public boolean getBoolean(int parameterIndex) throws SQLException {
+        return currentCallable().getBoolean(parameterIndex);
+    }
+
+    @Override
+    public byte getByte(int parameterIndex) throws SQLException {
+        return currentCallable().getByte(parameterIndex);
+    }
+
+    @Override
+    public short getShort(int parameterIndex) throws SQLException {
+        return currentCallable().getShort(parameterIndex);
+    }
+
+    @Override
+    public int getInt(int parameterIndex) throws SQLException {
+        return currentCallable().getInt(parameterIndex);
+    }
+
+    @Override
+    public long getLong(int parameterIndex) throws SQLException {
+        return currentCallable().getLong(parameterIndex);
+    }
+
+    @Override
+    public float getFloat(int parameterIndex) throws SQLException {
+        return currentCallable().getFloat(parameterIndex);
+    }
+
+    @Override
+    public double getDouble(int parameterIndex) throws SQLException {
+        return currentCallable().getDouble(parameterIndex);
+    }
+
+    @Override
+    public byte[] getBytes(int parameterIndex) throws SQLException {
+        return currentCallable().getBytes(parameterIndex);
+    }
+
+    @Override
+    public Date getDate(int parameterIndex) throws SQLException {
+        return currentCallable().getDate(parameterIndex);
+    }
+
+    @Override
+    public Date getDate(int parameterIndex, Calendar cal) throws SQLException {
+        return currentCallable().getDate(parameterIndex, cal);
+    }
+
+    @Override
+    public Time getTime(int parameterIndex) throws SQLException {
+        return currentCallable().getTime(parameterIndex);
+    }
+
+    @Override
+    public Time getTime(int parameterIndex, Calendar cal) throws SQLException {
+        return currentCallable().getTime(parameterIndex, cal);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int parameterIndex) throws SQLException {
+        return currentCallable().getTimestamp(parameterIndex);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int parameterIndex, Calendar cal) throws SQLException {
+        return currentCallable().getTimestamp(parameterIndex, cal);
+    }
+
+    @Override
+    public Object getObject(int parameterIndex) throws SQLException {
+        return currentCallable().getObject(parameterIndex);
+    }
+
+    @Override
+    public Object getObject(int parameterIndex, Map<String, Class<?>> map) throws SQLException {
+        return currentCallable().getObject(parameterIndex, map);
+    }
+
+    @Override
+    public <T> T getObject(int parameterIndex, Class<T> type) throws SQLException {
+        return currentCallable().getObject(parameterIndex, type);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int parameterIndex) throws SQLException {
+        return currentCallable().getBigDecimal(parameterIndex);
+    }
+
+    @Override
+    public Ref getRef(int parameterIndex) throws SQLException {
+        return currentCallable().getRef(parameterIndex);
+    }
+
+    @Override
+    public Blob getBlob(int parameterIndex) throws SQLException {
+        return currentCallable().getBlob(parameterIndex);
+    }
+
+    @Override
+    public Clob getClob(int parameterIndex) throws SQLException {
+        return currentCallable().getClob(parameterIndex);
+    }
+
+    @Override
+    public Array getArray(int parameterIndex) throws SQLException {
+        return currentCallable().getArray(parameterIndex);
+    }
+
+    @Override
+    public URL getURL(int parameterIndex) throws SQLException {
+        return currentCallable().getURL(parameterIndex);
+    }
+
+    @Override
+    public RowId getRowId(int parameterIndex) throws SQLException {
+        return currentCallable().getRowId(parameterIndex);
+    }
+
+    @Override
+    public NClob getNClob(int parameterIndex) throws SQLException {
+        return currentCallable().getNClob(parameterIndex);
+    }
+
+    @Override
+    public SQLXML getSQLXML(int parameterIndex) throws SQLException {
+        return currentCallable().getSQLXML(parameterIndex);
+    }
+
+    @Override
+    public String getNString(int parameterIndex) throws SQLException {
+        return currentCallable().getNString(parameterIndex);
+    }
+
+    @Override
+    public Reader getNCharacterStream(int parameterIndex) throws SQLException {
+        return currentCallable().getNCharacterStream(parameterIndex);
+    }
+
+    @Override
+    public Reader getCharacterStream(int parameterIndex) throws SQLException {
+        return currentCallable().getCharacterStream(parameterIndex);
+    }
+
+    @Override
+    @Deprecated
+    public BigDecimal getBigDecimal(int parameterIndex, int scale) throws SQLException {
+        return currentCallable().getBigDecimal(parameterIndex, scale);
+    }
+
+    @Override
+    public String getString(String parameterName) throws SQLException {
+        return currentCallable().getString(parameterName);
+    }
+
+    @Override
+    public boolean getBoolean(String parameterName) throws SQLException {
+        return currentCallable().getBoolean(parameterName);
+    }
+
+    @Override
+    public byte getByte(String parameterName) throws SQLException {
+        return currentCallable().getByte(parameterName);
+    }
+
+    @Override
+    public short getShort(String parameterName) throws SQLException {
+        return currentCallable().getShort(parameterName);
+    }
+
+    @Override
+    public int getInt(String parameterName) throws SQLException {
+        return currentCallable().getInt(parameterName);
+    }
+
+    @Override
+    public long getLong(String parameterName) throws SQLException {
+        return currentCallable().getLong(parameterName);
+    }
+
+    @Override
+    public float getFloat(String parameterName) throws SQLException {
+        return currentCallable().getFloat(parameterName);
+    }
+
+    @Override
+    public double getDouble(String parameterName) throws SQLException {
+        return currentCallable().getDouble(parameterName);
+    }
+
+    @Override
+    public byte[] getBytes(String parameterName) throws SQLException {
+        return currentCallable().getBytes(parameterName);
+    }
+
+    @Override
+    public Date getDate(String parameterName) throws SQLException {
+        return currentCallable().getDate(parameterName);
+    }
+
+    @Override
+    public Date getDate(String parameterName, Calendar cal) throws SQLException {
+        return currentCallable().getDate(parameterName, cal);
+    }
+
+    @Override
+    public Time getTime(String parameterName) throws SQLException {
+        return currentCallable().getTime(parameterName);
+    }
+
+    @Override
+    public Time getTime(String parameterName, Calendar cal) throws SQLException {
+        return currentCallable().getTime(parameterName, cal);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String parameterName) throws SQLException {
+        return currentCallable().getTimestamp(parameterName);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String parameterName, Calendar cal) throws SQLException {
+        return currentCallable().getTimestamp(parameterName, cal);
+    }
+
+    @Override
+    public Object getObject(String parameterName) throws SQLException {
+        return currentCallable().getObject(parameterName);
+    }
+
+    @Override
+    public Object getObject(String parameterName, Map<String, Class<?>> map) throws SQLException {
+        return currentCallable().getObject(parameterName, map);
+    }
+
+    @Override
+    public <T> T getObject(String parameterName, Class<T> type) throws SQLException {
+        return currentCallable().getObject(parameterName, type);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String parameterName) throws SQLException {
+        return currentCallable().getBigDecimal(parameterName);
+    }
+
+    @Override
+    public Ref getRef(String parameterName) throws SQLException {
+        return currentCallable().getRef(parameterName);
+    }
+
+    @Override
+    public Blob getBlob(String parameterName) throws SQLException {
+        return currentCallable().getBlob(parameterName);
+    }
+
+    @Override
+    public Clob getClob(String parameterName) throws SQLException {
+        return currentCallable().getClob(parameterName);
+    }
+
+    @Override
+    public Array getArray(String parameterName) throws SQLException {
+        return currentCallable().getArray(parameterName);
+    }
+
+    @Override
+    public URL getURL(String parameterName) throws SQLException {
+        return currentCallable().getURL(parameterName);
+    }
+
+    @Override
+    public RowId getRowId(String parameterName) throws SQLException {
+        return currentCallable().getRowId(parameterName);
+    }
+
+    @Override
+    public NClob getNClob(String parameterName) throws SQLException {
+        return currentCallable().getNClob(parameterName);
+    }
+
+    @Override
+    public SQLXML getSQLXML(String parameterName) throws SQLException {
+        return currentCallable().getSQLXML(parameterName);
+    }
+
+    @Override
+    public String getNString(String parameterName) throws SQLException {
+        return currentCallable().getNString(parameterName);
+    }
+
+    @Override
+    public Reader getNCharacterStream(String parameterName) throws SQLException {
+        return currentCallable().getNCharacterStream(parameterName);
+    }
+
+    @Override
+    public Reader getCharacterStream(String parameterName) throws SQLException {
+        return currentCallable().getCharacterStream(parameterName);
+    }
+
+    @Override
+    public void setURL(String parameterName, URL val) throws SQLException {
+        currentCallable().setURL(parameterName, val);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setURL(parameterName, val));
+    }
+
+    @Override
+    public void setNull(String parameterName, int sqlType) throws SQLException {
+        currentCallable().setNull(parameterName, sqlType);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNull(parameterName, sqlType));
+    }
+
+    @Override
+    public void setBoolean(String parameterName, boolean x) throws SQLException {
+        currentCallable().setBoolean(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBoolean(parameterName, x));
+    }
+
+    @Override
+    public void setByte(String parameterName, byte x) throws SQLException {
+        currentCallable().setByte(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setByte(parameterName, x));
+    }
+
+    @Override
+    public void setShort(String parameterName, short x) throws SQLException {
+        currentCallable().setShort(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setShort(parameterName, x));
+    }
+
+    @Override
+    public void setInt(String parameterName, int x) throws SQLException {
+        currentCallable().setInt(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setInt(parameterName, x));
+    }
+
+    @Override
+    public void setLong(String parameterName, long x) throws SQLException {
+        currentCallable().setLong(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setLong(parameterName, x));
+    }
+
+    @Override
+    public void setFloat(String parameterName, float x) throws SQLException {
+        currentCallable().setFloat(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setFloat(parameterName, x));
+    }
+
+    @Override
+    public void setDouble(String parameterName, double x) throws SQLException {
+        currentCallable().setDouble(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setDouble(parameterName, x));
+    }
+
+    @Override
+    public void setBigDecimal(String parameterName, BigDecimal x) throws SQLException {
+        currentCallable().setBigDecimal(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBigDecimal(parameterName, x));
+    }
+
+    @Override
+    public void setString(String parameterName, String x) throws SQLException {
+        currentCallable().setString(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setString(parameterName, x));
+    }
+
+    @Override
+    public void setBytes(String parameterName, byte[] x) throws SQLException {
+        currentCallable().setBytes(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBytes(parameterName, x));
+    }
+
+    @Override
+    public void setDate(String parameterName, Date x) throws SQLException {
+        currentCallable().setDate(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setDate(parameterName, x));
+    }
+
+    @Override
+    public void setTime(String parameterName, Time x) throws SQLException {
+        currentCallable().setTime(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setTime(parameterName, x));
+    }
+
+    @Override
+    public void setTimestamp(String parameterName, Timestamp x) throws SQLException {
+        currentCallable().setTimestamp(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setTimestamp(parameterName, x));
+    }
+
+    @Override
+    public void setAsciiStream(String parameterName, InputStream x, int length) throws SQLException {
+        currentCallable().setAsciiStream(parameterName, x, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setAsciiStream(parameterName, x, length));
+    }
+
+    @Override
+    public void setBinaryStream(String parameterName, InputStream x, int length) throws SQLException {
+        currentCallable().setBinaryStream(parameterName, x, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBinaryStream(parameterName, x, length));
+    }
+
+    @Override
+    public void setObject(String parameterName, Object x, int targetSqlType, int scale) throws SQLException {
+        currentCallable().setObject(parameterName, x, targetSqlType, scale);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setObject(parameterName, x, targetSqlType, scale));
+    }
+
+    @Override
+    public void setObject(String parameterName, Object x, int targetSqlType) throws SQLException {
+        currentCallable().setObject(parameterName, x, targetSqlType);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setObject(parameterName, x, targetSqlType));
+    }
+
+    @Override
+    public void setObject(String parameterName, Object x) throws SQLException {
+        currentCallable().setObject(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setObject(parameterName, x));
+    }
+
+    @Override
+    public void setCharacterStream(String parameterName, Reader reader, int length) throws SQLException {
+        currentCallable().setCharacterStream(parameterName, reader, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setCharacterStream(parameterName, reader, length));
+    }
+
+    @Override
+    public void setDate(String parameterName, Date x, Calendar cal) throws SQLException {
+        currentCallable().setDate(parameterName, x, cal);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setDate(parameterName, x, cal));
+    }
+
+    @Override
+    public void setTime(String parameterName, Time x, Calendar cal) throws SQLException {
+        currentCallable().setTime(parameterName, x, cal);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setTime(parameterName, x, cal));
+    }
+
+    @Override
+    public void setTimestamp(String parameterName, Timestamp x, Calendar cal) throws SQLException {
+        currentCallable().setTimestamp(parameterName, x, cal);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setTimestamp(parameterName, x, cal));
+    }
+
+    @Override
+    public void setNull(String parameterName, int sqlType, String typeName) throws SQLException {
+        currentCallable().setNull(parameterName, sqlType, typeName);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNull(parameterName, sqlType, typeName));
+    }
+
+    @Override
+    public void setRowId(String parameterName, RowId x) throws SQLException {
+        currentCallable().setRowId(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setRowId(parameterName, x));
+    }
+
+    @Override
+    public void setNString(String parameterName, String value) throws SQLException {
+        currentCallable().setNString(parameterName, value);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNString(parameterName, value));
+    }
+
+    @Override
+    public void setNCharacterStream(String parameterName, Reader value, long length) throws SQLException {
+        currentCallable().setNCharacterStream(parameterName, value, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNCharacterStream(parameterName, value, length));
+    }
+
+    @Override
+    public void setNClob(String parameterName, NClob value) throws SQLException {
+        currentCallable().setNClob(parameterName, value);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNClob(parameterName, value));
+    }
+
+    @Override
+    public void setClob(String parameterName, Reader reader, long length) throws SQLException {
+        currentCallable().setClob(parameterName, reader, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setClob(parameterName, reader, length));
+    }
+
+    @Override
+    public void setBlob(String parameterName, InputStream inputStream, long length) throws SQLException {
+        currentCallable().setBlob(parameterName, inputStream, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBlob(parameterName, inputStream, length));
+    }
+
+    @Override
+    public void setNClob(String parameterName, Reader reader, long length) throws SQLException {
+        currentCallable().setNClob(parameterName, reader, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNClob(parameterName, reader, length));
+    }
+
+    @Override
+    public void setSQLXML(String parameterName, SQLXML xmlObject) throws SQLException {
+        currentCallable().setSQLXML(parameterName, xmlObject);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setSQLXML(parameterName, xmlObject));
+    }
+
+    @Override
+    public void setBlob(String parameterName, Blob x) throws SQLException {
+        currentCallable().setBlob(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBlob(parameterName, x));
+    }
+
+    @Override
+    public void setClob(String parameterName, Clob x) throws SQLException {
+        currentCallable().setClob(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setClob(parameterName, x));
+    }
+
+    @Override
+    public void setAsciiStream(String parameterName, InputStream x, long length) throws SQLException {
+        currentCallable().setAsciiStream(parameterName, x, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setAsciiStream(parameterName, x, length));
+    }
+
+    @Override
+    public void setBinaryStream(String parameterName, InputStream x, long length) throws SQLException {
+        currentCallable().setBinaryStream(parameterName, x, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBinaryStream(parameterName, x, length));
+    }
+
+    @Override
+    public void setCharacterStream(String parameterName, Reader reader, long length) throws SQLException {
+        currentCallable().setCharacterStream(parameterName, reader, length);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setCharacterStream(parameterName, reader, length));
+    }
+
+    @Override
+    public void setAsciiStream(String parameterName, InputStream x) throws SQLException {
+        currentCallable().setAsciiStream(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setAsciiStream(parameterName, x));
+    }
+
+    @Override
+    public void setBinaryStream(String parameterName, InputStream x) throws SQLException {
+        currentCallable().setBinaryStream(parameterName, x);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBinaryStream(parameterName, x));
+    }
+
+    @Override
+    public void setCharacterStream(String parameterName, Reader reader) throws SQLException {
+        currentCallable().setCharacterStream(parameterName, reader);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setCharacterStream(parameterName, reader));
+    }
+
+    @Override
+    public void setNCharacterStream(String parameterName, Reader value) throws SQLException {
+        currentCallable().setNCharacterStream(parameterName, value);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNCharacterStream(parameterName, value));
+    }
+
+    @Override
+    public void setClob(String parameterName, Reader reader) throws SQLException {
+        currentCallable().setClob(parameterName, reader);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setClob(parameterName, reader));
+    }
+
+    @Override
+    public void setBlob(String parameterName, InputStream inputStream) throws SQLException {
+        currentCallable().setBlob(parameterName, inputStream);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setBlob(parameterName, inputStream));
+    }
+
+    @Override
+    public void setNClob(String parameterName, Reader reader) throws SQLException {
+        currentCallable().setNClob(parameterName, reader);
+        namedParameter(parameterName, s -> ((CallableStatement) s).setNClob(parameterName, reader));
+    }
+}
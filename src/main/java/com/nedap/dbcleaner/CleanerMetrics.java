@@ -0,0 +1,102 @@
+package com.nedap.dbcleaner;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of the cleaner, registered as an MXBean with the platform MBean server. Counting uses
+ * {@link LongAdder}s only, so it is always on.
+ */
+public class CleanerMetrics implements CleanerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.nedap.dbcleaner:type=CleanerMetrics";
+
+    private static final CleanerMetrics instance = new CleanerMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            //already registered by another class loader, or JMX is not available: the metrics still work without it
+        }
+    }
+
+    final LongAdder swallowedCommits = new LongAdder();
+    final LongAdder swallowedRollbacks = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder leakedConnections = new LongAdder();
+    final DurationHistogram acquireWait = new DurationHistogram();
+    final DurationHistogram forceStart = new DurationHistogram();
+    final DurationHistogram forceRollback = new DurationHistogram();
+    final DurationHistogram forceCommit = new DurationHistogram();
+
+    public static CleanerMetrics get() {
+        return instance;
+    }
+
+    private CleanerMetrics() {
+    }
+
+    @Override
+    public int getOpenSwitchingConnections() {
+        return SwitchingConnectionWrapper.getOpenConnections().size();
+    }
+
+    @Override
+    public int getOpenTransactionWrappedConnections() {
+        return TransactionWrappedConnection.getOpenConnections().size();
+    }
+
+    @Override
+    public long getSwallowedCommits() {
+        return swallowedCommits.sum();
+    }
+
+    @Override
+    public long getSwallowedRollbacks() {
+        return swallowedRollbacks.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getLeakedConnections() {
+        return leakedConnections.sum();
+    }
+
+    @Override
+    public long getContendedAcquires() {
+        return acquireWait.getSnapshot().getCount();
+    }
+
+    @Override
+    public long getAcquireWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(acquireWait.getTotalNanos());
+    }
+
+    @Override
+    public DurationHistogram.Snapshot getAcquireWaitDurations() {
+        return acquireWait.getSnapshot();
+    }
+
+    @Override
+    public DurationHistogram.Snapshot getForceStartDurations() {
+        return forceStart.getSnapshot();
+    }
+
+    @Override
+    public DurationHistogram.Snapshot getForceRollbackDurations() {
+        return forceRollback.getSnapshot();
+    }
+
+    @Override
+    public DurationHistogram.Snapshot getForceCommitDurations() {
+        return forceCommit.getSnapshot();
+    }
+}
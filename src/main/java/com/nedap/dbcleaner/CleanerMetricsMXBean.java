@@ -0,0 +1,50 @@
+package com.nedap.dbcleaner;
+
+/**
+ * What the cleaner is doing, as shown over JMX under {@value CleanerMetrics#OBJECT_NAME}.
+ */
+public interface CleanerMetricsMXBean {
+
+    int getOpenSwitchingConnections();
+
+    int getOpenTransactionWrappedConnections();
+
+    /**
+     * @return the number of commit() calls by the application that were skipped because of a forced transaction
+     */
+    long getSwallowedCommits();
+
+    /**
+     * @return the number of rollback() calls by the application that were skipped because of a forced transaction
+     */
+    long getSwallowedRollbacks();
+
+    /**
+     * @return the number of errors while starting, rolling back or committing, which are only printed otherwise
+     */
+    long getFailures();
+
+    /**
+     * @return the number of connections that were garbage collected without being closed, and whose underlying
+     * connection was closed by the reaper
+     */
+    long getLeakedConnections();
+
+    /**
+     * @return the number of times a thread had to wait for a shared connection that another thread was using
+     */
+    long getContendedAcquires();
+
+    /**
+     * @return the total time threads waited for a shared connection, in milliseconds
+     */
+    long getAcquireWaitMillis();
+
+    DurationHistogram.Snapshot getAcquireWaitDurations();
+
+    DurationHistogram.Snapshot getForceStartDurations();
+
+    DurationHistogram.Snapshot getForceRollbackDurations();
+
+    DurationHistogram.Snapshot getForceCommitDurations();
+}
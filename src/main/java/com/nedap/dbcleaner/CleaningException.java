@@ -0,0 +1,31 @@
+package com.nedap.dbcleaner;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Starting, rolling back or committing failed on one or more underlying connections. The cleaning was still applied to
+ * all other connections. The first failure is the cause, the others are attached as suppressed exceptions.
+ */
+public class CleaningException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<SQLException> failures;
+
+    public CleaningException(String action, List<SQLException> failures) {
+        super(action + " failed on " + failures.size() + " connection(s): " + failures.get(0).getMessage(),
+                failures.get(0));
+        this.failures = failures;
+        for (SQLException failure : failures.subList(1, failures.size())) {
+            addSuppressed(failure);
+        }
+    }
+
+    /**
+     * @return the failure of each connection that failed
+     */
+    public List<SQLException> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,21 @@
+package com.nedap.dbcleaner;
+
+/**
+ * Is told when a {@link CleaningSession} moves from one {@link CleaningState} to another, for example to reset caches
+ * of the application after a rollback, or to log how long cleaning takes.
+ *
+ * Add a listener to one session with {@link CleaningSession#addListener(CleaningListener)}, or to all sessions by
+ * naming the implementing class in META-INF/services/com.nedap.dbcleaner.CleaningListener.
+ */
+public interface CleaningListener {
+
+    /**
+     * Called on the thread that starts, rolls back or commits, right after the state changed. Connections can still
+     * be opened meanwhile. An exception thrown here is logged and otherwise ignored.
+     *
+     * @param session the session
+     * @param from the previous state
+     * @param to the new state
+     */
+    void stateChanged(CleaningSession session, CleaningState from, CleaningState to);
+}
@@ -0,0 +1,505 @@
+package com.nedap.dbcleaner;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An independent cleaning domain. Every session has its own underlying connection per database, with its own forced
+ * transaction, and routes only the connections that were opened within the session. Test suites that run in parallel
+ * can each use their own session, so they do not see each other's data.
+ *
+ * Connections are opened within the session that is bound to the opening thread, or within the default session if no
+ * session is bound. {@link TransactionUtil} works on the same session.
+ *
+ * <pre>
+ * CleaningSession session = CleaningSession.get("worker-" + workerNumber);
+ * session.bind();
+ * try {
+ *     TransactionUtil.startTransactions();
+ *     ...
+ *     TransactionUtil.rollbackTransactions();
+ * } finally {
+ *     CleaningSession.unbind();
+ * }
+ * </pre>
+ */
+public class CleaningSession {
+
+    /**
+     * Id of the session that is used when no session is bound to a thread
+     */
+    public static final String DEFAULT_ID = "default";
+    private static final Logger logger = Logger.getLogger(CleaningSession.class.getName());
+    /**
+     * Listeners to every session, registered as services
+     */
+    private static final List<CleaningListener> serviceListeners = new ArrayList<CleaningListener>();
+
+    static {
+        for (CleaningListener listener : ServiceLoader.load(CleaningListener.class)) {
+            serviceListeners.add(listener);
+        }
+    }
+
+    private static final ConcurrentMap<String, CleaningSession> sessions
+            = new ConcurrentHashMap<String, CleaningSession>();
+    private static final CleaningSession defaultSession = get(DEFAULT_ID);
+    private static final ThreadLocal<CleaningSession> boundSession = new ThreadLocal<CleaningSession>();
+
+    private final String id;
+    /**
+     * Changed only by the synchronized methods that start, roll back and commit, but read without locking, on every
+     * connect
+     */
+    private final AtomicReference<Lifecycle> lifecycle
+            = new AtomicReference<Lifecycle>(new Lifecycle(CleaningState.IDLE, false));
+    private final List<CleaningListener> listeners = new CopyOnWriteArrayList<CleaningListener>();
+    /**
+     * Names of the savepoints in the forced transaction, most recent first
+     */
+    private final Deque<String> savepoints = new ArrayDeque<String>();
+    private volatile CleaningStrategy strategy = CleaningStrategy.TRANSACTION;
+    /**
+     * Whether tables are being copied before they are written to. Read on every statement, hence volatile.
+     */
+    private volatile boolean snapshotting = false;
+    /**
+     * Identifies the current forced transaction across databases, for XA connections
+     */
+    private volatile byte[] globalTransactionId = new byte[0];
+
+    private CleaningSession(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Get the session with the given context id, creating it if it does not exist yet.
+     *
+     * @param id the context id, for example a thread name or test class name
+     * @return the session
+     */
+    public static CleaningSession get(String id) {
+        CleaningSession session = sessions.get(id);
+        if (session == null) {
+            sessions.putIfAbsent(id, new CleaningSession(id));
+            session = sessions.get(id);
+        }
+        return session;
+    }
+
+    /**
+     * @param id the context id
+     * @return the session with the given context id, or null if it does not exist
+     */
+    static CleaningSession find(String id) {
+        return sessions.get(id);
+    }
+
+    public static CleaningSession getDefault() {
+        return defaultSession;
+    }
+
+    /**
+     * @return the session bound to the current thread, or the default session if none is bound
+     */
+    public static CleaningSession current() {
+        CleaningSession session = boundSession.get();
+        return session == null ? defaultSession : session;
+    }
+
+    /**
+     * Bind this session to the current thread. Connections opened by this thread, and calls to
+     * {@link TransactionUtil} from this thread, will use this session.
+     */
+    public void bind() {
+        boundSession.set(this);
+    }
+
+    /**
+     * Unbind the session from the current thread, so it goes back to using the default session.
+     */
+    public static void unbind() {
+        boundSession.remove();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Roll back the session if it is started, close its underlying connections and forget it. The default session
+     * cannot be closed.
+     *
+     * @throws SQLException if an underlying connection could not be closed
+     */
+    public void close() throws SQLException {
+        if (this == defaultSession) {
+            throw new IllegalStateException("the default session cannot be closed");
+        }
+        rollbackTransactions();
+        sessions.remove(id, this);
+        for (TransactionWrappedConnection c : TransactionWrappedConnection.getOpenConnections(this)) {
+            c.forceClose();
+        }
+        DBCleaner.forget(this);
+    }
+
+    /**
+     * Choose how the database is cleaned. Can only be changed when cleaning is not started. Connections that have
+     * been routed through one underlying connection by the transaction strategy stay routed that way.
+     *
+     * @param cleaningStrategy the strategy to use from the next {@link #startTransactions()} on
+     */
+    public synchronized void setStrategy(CleaningStrategy cleaningStrategy) {
+        if (getState() != CleaningState.IDLE && getState() != CleaningState.COMMITTED) {
+            throw new IllegalStateException("cannot change the cleaning strategy while cleaning is started");
+        }
+        this.strategy = cleaningStrategy;
+    }
+
+    public CleaningStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Start the forced transaction on every underlying connection of this session, on all of them at the same time.
+     *
+     * @throws CleaningException if it could not be started on some of the connections
+     */
+    public synchronized void startTransactions() {
+        if (getState() == CleaningState.FORCED) {
+            return;//we're already in a forced transaction, ignore!
+        }
+        long begin = System.nanoTime();
+        List<SQLException> failures = new ArrayList<SQLException>();
+        if (strategy == CleaningStrategy.TRANSACTION) {
+            UUID transactionId = UUID.randomUUID();
+            globalTransactionId = ByteBuffer.allocate(16).putLong(transactionId.getMostSignificantBits())
+                    .putLong(transactionId.getLeastSignificantBits()).array();
+            //connections opened from here on are routed through the forced transaction right away, so the ones
+            //opened before are all in the lists below
+            moveTo(CleaningState.STARTING, true);
+        } else {
+            moveTo(CleaningState.STARTING);
+        }
+        try {
+            if (strategy == CleaningStrategy.TABLE_SNAPSHOT) {
+                for (TransactionWrappedConnection c : TransactionWrappedConnection.getOpenConnections(this)) {
+                    c.getTableSnapshots().clear();
+                }
+                this.snapshotting = true;
+            } else {
+                //start the transaction
+                failures.addAll(ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this),
+                        ForceableConnection::forceStartTransaction));
+
+                //wrap the switching connection
+                failures.addAll(ParallelForce.onEach(SwitchingConnectionWrapper.getOpenConnections(this),
+                        ForceableConnection::forceStartTransaction));
+            }
+        } finally {
+            moveTo(CleaningState.FORCED);
+        }
+        CleanerMetrics.get().forceStart.recordSince(begin);
+        if (!failures.isEmpty()) {
+            throw new CleaningException("starting the transaction", failures);
+        }
+    }
+
+    /**
+     * Roll back the forced transaction on every underlying connection of this session, on all of them at the same
+     * time.
+     *
+     * @throws CleaningException if some of the connections could not be rolled back
+     */
+    public synchronized void rollbackTransactions() {
+        if (getState() != CleaningState.FORCED) {
+            return;//we can't rollback outside of a transaction
+        }
+        long begin = System.nanoTime();
+        List<SQLException> failures = new ArrayList<SQLException>();
+        moveTo(CleaningState.ROLLING_BACK);
+        try {
+            if (strategy == CleaningStrategy.TABLE_SNAPSHOT) {
+                snapshotting = false;
+                failures.addAll(ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this),
+                        TransactionWrappedConnection::restoreTableSnapshots));
+            } else {
+                failures.addAll(ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this),
+                        ForceableConnection::forceRollbackTransaction));
+                //wrap the switching connection
+                failures.addAll(ParallelForce.onEach(SwitchingConnectionWrapper.getOpenConnections(this),
+                        ForceableConnection::forceRollbackTransaction));
+                savepoints.clear();
+            }
+        } finally {
+            moveTo(CleaningState.IDLE);
+        }
+        CleanerMetrics.get().forceRollback.recordSince(begin);
+        if (!failures.isEmpty()) {
+            throw new CleaningException("rolling back the transaction", failures);
+        }
+    }
+
+    /**
+     * Commit the forced transaction on every underlying connection of this session, on all of them at the same time.
+     * Connections to XA data sources are committed with a two phase commit: if one of them cannot be prepared, all of
+     * them are rolled back.
+     *
+     * @throws CleaningException if some of the connections could not be committed
+     */
+    public synchronized void commitTransactions() {
+        if (getState() != CleaningState.FORCED) {
+            return;//we can't commit outside of a transaction
+        }
+        long begin = System.nanoTime();
+        List<SQLException> failures = new ArrayList<SQLException>();
+        moveTo(CleaningState.COMMITTING);
+        try {
+            if (strategy == CleaningStrategy.TABLE_SNAPSHOT) {
+                snapshotting = false;
+                for (TransactionWrappedConnection c : TransactionWrappedConnection.getOpenConnections(this)) {
+                    c.getTableSnapshots().clear();
+                }
+            } else {
+                List<TransactionWrappedConnection> twoPhase = new ArrayList<TransactionWrappedConnection>();
+                List<TransactionWrappedConnection> onePhase = new ArrayList<TransactionWrappedConnection>();
+                for (TransactionWrappedConnection c : TransactionWrappedConnection.getOpenConnections(this)) {
+                    (c.supportsTwoPhaseCommit() ? twoPhase : onePhase).add(c);
+                }
+                List<SQLException> prepareFailures = ParallelForce.onAll(twoPhase,
+                        TransactionWrappedConnection::forcePrepareTransaction);
+                if (prepareFailures.isEmpty()) {
+                    failures.addAll(ParallelForce.onAll(twoPhase, ForceableConnection::forceCommitTransaction));
+                } else {
+                    failures.addAll(prepareFailures);
+                    failures.addAll(ParallelForce.onAll(twoPhase, ForceableConnection::forceRollbackTransaction));
+                }
+                failures.addAll(ParallelForce.onAll(onePhase, ForceableConnection::forceCommitTransaction));
+                //wrap the switching connection
+                failures.addAll(ParallelForce.onEach(SwitchingConnectionWrapper.getOpenConnections(this),
+                        ForceableConnection::forceCommitTransaction));
+                savepoints.clear();
+            }
+        } finally {
+            moveTo(CleaningState.COMMITTED);
+        }
+        CleanerMetrics.get().forceCommit.recordSince(begin);
+        if (!failures.isEmpty()) {
+            throw new CleaningException("committing the transaction", failures);
+        }
+    }
+
+    /**
+     * @return the current state of the cleaning, without waiting for a start, rollback or commit in progress
+     */
+    public CleaningState getState() {
+        return lifecycle.get().state;
+    }
+
+    /**
+     * Tell the given listener about every change of state of this session, in addition to the listeners registered
+     * as services.
+     */
+    public void addListener(CleaningListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CleaningListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void moveTo(CleaningState next) {
+        moveTo(next, lifecycle.get().routed);
+    }
+
+    private void moveTo(CleaningState next, boolean routed) {
+        CleaningState previous = lifecycle.getAndSet(new Lifecycle(next, routed)).state;
+        notify(serviceListeners, previous, next);
+        notify(listeners, previous, next);
+    }
+
+    private void notify(List<CleaningListener> listeners, CleaningState from, CleaningState to) {
+        for (CleaningListener listener : listeners) {
+            try {
+                listener.stateChanged(this, from, to);
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "cleaning listener " + listener + " failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Take a named copy of every embedded HSQLDB or H2 database of this session, on all of them at the same time. Other
+     * databases are skipped.
+     *
+     * @param name the name of the checkpoint, replacing an earlier checkpoint with that name
+     * @throws CleaningException if the copy could not be taken of some of the databases
+     */
+    public synchronized void checkpoint(String name) {
+        List<SQLException> failures = ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this),
+                c -> c.forceCheckpoint(name));
+        if (!failures.isEmpty()) {
+            throw new CleaningException("taking checkpoint " + name, failures);
+        }
+    }
+
+    /**
+     * Restore the named checkpoint of every embedded HSQLDB or H2 database of this session. This also undoes DDL, and
+     * commits: a forced transaction that is rolled back afterwards does not undo the restore.
+     *
+     * @param name the name of a checkpoint taken before
+     * @throws CleaningException if the checkpoint could not be restored on some of the databases
+     */
+    public synchronized void restore(String name) {
+        List<SQLException> failures = ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this),
+                c -> c.forceRestoreCheckpoint(name));
+        savepoints.clear();
+        if (!failures.isEmpty()) {
+            throw new CleaningException("restoring checkpoint " + name, failures);
+        }
+    }
+
+    byte[] getGlobalTransactionId() {
+        return globalTransactionId;
+    }
+
+    /**
+     * Set a named savepoint on every underlying connection. Typical use is to load fixture data once after
+     * {@link #startTransactions()}, push a savepoint, and then {@link #rollbackToSavepoint(String)} after every test
+     * instead of reloading the fixture data.
+     *
+     * @param name the name of the savepoint, unique within the current forced transaction
+     * @throws CleaningException if the savepoint could not be set on some of the connections, in which case it is not
+     * pushed
+     */
+    public synchronized void pushSavepoint(String name) {
+        if (getState() != CleaningState.FORCED || strategy != CleaningStrategy.TRANSACTION) {
+            throw new IllegalStateException("savepoints can only be set after startTransactions() with the "
+                    + CleaningStrategy.TRANSACTION + " strategy");
+        }
+        if (savepoints.contains(name)) {
+            throw new IllegalArgumentException("savepoint " + name + " already exists");
+        }
+        List<SQLException> failures = onEveryConnection(c -> c.forceSetSavepoint(name));
+        if (!failures.isEmpty()) {
+            throw new CleaningException("setting savepoint " + name, failures);
+        }
+        savepoints.push(name);
+    }
+
+    /**
+     * Roll back every underlying connection to the named savepoint. The savepoint remains on the stack, so this can be
+     * repeated; savepoints pushed after it are discarded.
+     *
+     * @param name the name of a savepoint that was pushed before
+     * @throws CleaningException if some of the connections could not be rolled back, in which case the stack is left
+     * as it was
+     */
+    public synchronized void rollbackToSavepoint(String name) {
+        if (!savepoints.contains(name)) {
+            throw new IllegalArgumentException("unknown savepoint " + name);
+        }
+        List<SQLException> failures = onEveryConnection(c -> c.forceRollbackToSavepoint(name));
+        if (!failures.isEmpty()) {
+            throw new CleaningException("rolling back to savepoint " + name, failures);
+        }
+        while (!savepoints.peek().equals(name)) {
+            savepoints.pop();
+        }
+    }
+
+    /**
+     * Roll back every underlying connection to the most recently pushed savepoint.
+     */
+    public synchronized void rollbackToSavepoint() {
+        if (savepoints.isEmpty()) {
+            throw new IllegalStateException("no savepoint has been pushed");
+        }
+        rollbackToSavepoint(savepoints.peek());
+    }
+
+    /**
+     * Release the most recently pushed savepoint. Its changes stay part of the forced transaction.
+     *
+     * @return the name of the released savepoint
+     * @throws CleaningException if the savepoint could not be released on some of the connections, in which case it
+     * stays on the stack
+     */
+    public synchronized String popSavepoint() {
+        if (savepoints.isEmpty()) {
+            throw new IllegalStateException("no savepoint has been pushed");
+        }
+        String name = savepoints.peek();
+        List<SQLException> failures = onEveryConnection(c -> c.forceReleaseSavepoint(name));
+        if (!failures.isEmpty()) {
+            throw new CleaningException("releasing savepoint " + name, failures);
+        }
+        savepoints.pop();
+        return name;
+    }
+
+    /**
+     * Apply the step to the transaction wrapped connections of this session in parallel, and then to the switching
+     * connections one after the other.
+     *
+     * @return the failures, empty if the step succeeded on every connection
+     */
+    private List<SQLException> onEveryConnection(ParallelForce.Step<ForceableConnection> step) {
+        List<SQLException> failures = new ArrayList<SQLException>();
+        failures.addAll(ParallelForce.onAll(TransactionWrappedConnection.getOpenConnections(this), step::apply));
+        failures.addAll(ParallelForce.onEach(SwitchingConnectionWrapper.getOpenConnections(this), step::apply));
+        return failures;
+    }
+
+    /**
+     * @return the names of the pushed savepoints, most recent first
+     */
+    public synchronized List<String> getSavepoints() {
+        return new ArrayList<String>(savepoints);
+    }
+
+    /**
+     * @return whether connections of this session are routed through the forced transaction, which stays so once it
+     * was started. Does not wait for a start, rollback or commit in progress.
+     */
+    public boolean isInForcedTransaction() {
+        return lifecycle.get().routed;
+    }
+
+    /**
+     * @return whether tables are copied before they are first written to, see {@link CleaningStrategy#TABLE_SNAPSHOT}
+     */
+    public boolean isSnapshotting() {
+        return snapshotting;
+    }
+
+    /**
+     * The state of the cleaning, together with whether connections are routed through the forced transaction. The
+     * state alone does not tell, because the {@link CleaningStrategy#TABLE_SNAPSHOT} strategy goes through the same
+     * states without routing, and connections stay routed once the forced transaction was started. Both change in one
+     * step, so they never disagree.
+     */
+    private static final class Lifecycle {
+
+        final CleaningState state;
+        final boolean routed;
+
+        Lifecycle(CleaningState state, boolean routed) {
+            this.state = state;
+            this.routed = routed;
+        }
+    }
+}
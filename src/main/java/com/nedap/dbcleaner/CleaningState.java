@@ -0,0 +1,33 @@
+package com.nedap.dbcleaner;
+
+/**
+ * The states of the cleaning of a {@link CleaningSession}. The state can be read at any time without waiting, also
+ * while the session moves from one state to the next.
+ */
+public enum CleaningState {
+
+    /**
+     * Not started yet, or rolled back
+     */
+    IDLE,
+    /**
+     * {@link CleaningSession#startTransactions()} is starting the forced transaction
+     */
+    STARTING,
+    /**
+     * Started: changes are kept in the forced transaction, or tables are copied before they are written to
+     */
+    FORCED,
+    /**
+     * {@link CleaningSession#rollbackTransactions()} is rolling back, after which the session is idle again
+     */
+    ROLLING_BACK,
+    /**
+     * {@link CleaningSession#commitTransactions()} is committing
+     */
+    COMMITTING,
+    /**
+     * Committed. The changes stay; starting again begins a new forced transaction.
+     */
+    COMMITTED
+}
@@ -0,0 +1,19 @@
+package com.nedap.dbcleaner;
+
+/**
+ * The ways in which {@link TransactionUtil} can clean the database.
+ */
+public enum CleaningStrategy {
+
+    /**
+     * Route all connections through one underlying connection per database and wrap everything in a single
+     * transaction, which is rolled back afterwards. This is the default.
+     */
+    TRANSACTION,
+    /**
+     * Leave the connections and their transactions alone, but copy every table right before it is first written to,
+     * and restore only those tables afterwards. Use this for databases in which statements such as DDL commit
+     * implicitly, for example MySQL. The DDL itself is not undone, only the rows of the tables are restored.
+     */
+    TABLE_SNAPSHOT
+}
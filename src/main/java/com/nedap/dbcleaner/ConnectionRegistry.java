@@ -0,0 +1,116 @@
+package com.nedap.dbcleaner;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The open connection wrappers of one kind, by connection number. Wrappers are only weakly referenced, so a wrapper
+ * the application forgets to close can still be garbage collected. A daemon thread, the reaper, then removes it and
+ * closes the underlying connection it left open, and reports the leak. With the system property
+ * {@value #LEAK_DETECTION_PROPERTY} set to true, the report includes the stack trace of where the connection was
+ * opened.
+ */
+class ConnectionRegistry<T extends BaseConnectionWrapper> {
+
+    static final String LEAK_DETECTION_PROPERTY = "dbcleaner.leakdetection";
+
+    private static final Logger logger = Logger.getLogger(ConnectionRegistry.class.getName());
+    private static final boolean recordAllocationSites = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+    private static final ReferenceQueue<BaseConnectionWrapper> collected = new ReferenceQueue<BaseConnectionWrapper>();
+
+    static {
+        Thread reaper = new Thread(ConnectionRegistry::reap, "dbcleaner connection reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private final ConcurrentMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+
+    /**
+     * @param wrapper a newly opened wrapper
+     * @param underlying the underlying connection to close if the wrapper is collected without being closed, or null
+     */
+    void register(T wrapper, Connection underlying) {
+        entries.put(wrapper.getConnectionNumber(), new Entry(wrapper, underlying));
+    }
+
+    void unregister(T wrapper) {
+        Entry entry = entries.remove(wrapper.getConnectionNumber());
+        if (entry != null) {
+            entry.clear();
+        }
+    }
+
+    /**
+     * @return the wrappers that are open and not collected
+     */
+    List<T> values() {
+        List<T> values = new ArrayList<T>(entries.size());
+        for (Entry entry : entries.values()) {
+            T wrapper = entry.get();
+            if (wrapper != null) {
+                values.add(wrapper);
+            }
+        }
+        return values;
+    }
+
+    private static void reap() {
+        while (true) {
+            try {
+                ((ConnectionRegistry<?>.Entry) collected.remove()).leaked();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "could not clean up a leaked connection", ex);
+            }
+        }
+    }
+
+    private class Entry extends WeakReference<T> {
+
+        private final Integer connectionNumber;
+        private final Connection underlying;
+        private final Throwable allocationSite;
+
+        Entry(T wrapper, Connection underlying) {
+            super(wrapper, collected);
+            this.connectionNumber = wrapper.getConnectionNumber();
+            this.underlying = underlying;
+            this.allocationSite = recordAllocationSites
+                    ? new Throwable("connection " + connectionNumber + " was opened here") : null;
+        }
+
+        /**
+         * The wrapper was collected without being closed.
+         */
+        void leaked() {
+            if (!entries.remove(connectionNumber, this)) {
+                return;
+            }
+            try {
+                if (underlying == null || underlying.isClosed()) {
+                    return;
+                }
+                underlying.close();
+            } catch (SQLException ex) {
+                //closing is all we could do
+            }
+            CleanerMetrics.get().leakedConnections.increment();
+            if (allocationSite != null) {
+                logger.log(Level.WARNING, "connection " + connectionNumber + " was not closed, closed it", allocationSite);
+            } else {
+                logger.warning("connection " + connectionNumber + " was not closed, closed it. Run with -D"
+                        + LEAK_DETECTION_PROPERTY + "=true to see where it was opened");
+            }
+        }
+    }
+}
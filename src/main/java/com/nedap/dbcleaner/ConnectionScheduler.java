@@ -0,0 +1,130 @@
+package com.nedap.dbcleaner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out a shared underlying connection to one thread at a time, in the order in which the threads asked for it.
+ * Optionally gives up after a timeout, with a message that tells which thread holds the connection and what it is
+ * executing, so a stuck test fails fast instead of hanging.
+ */
+public class ConnectionScheduler {
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final String name;
+    private volatile long timeoutMillis = 0;
+    private volatile Thread owner;
+    private volatile String ownerActivity;
+    private volatile long ownerSince;
+
+    /**
+     * @param name describes the connection in timeout messages
+     */
+    public ConnectionScheduler(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param timeoutMillis the maximum time to wait for the connection, or 0 to wait forever
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Wait for the connection. Reentrant: a thread that already holds the connection gets it again immediately.
+     *
+     * @param activity what the thread is going to do with the connection, typically SQL, or null
+     * @throws SQLTimeoutException if the connection was not handed out within the timeout
+     * @throws SQLException if the thread was interrupted while waiting
+     */
+    public void acquire(String activity) throws SQLException {
+        if (lock.isHeldByCurrentThread()) {
+            lock.lock();
+            return;
+        }
+        long timeout = timeoutMillis;
+        try {
+            //honours fairness, unlike tryLock(); only contended acquires are timed
+            if (!lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+                long begin = System.nanoTime();
+                if (timeout <= 0) {
+                    lock.lock();
+                } else if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                    throw timeout(activity, timeout);
+                }
+                CleanerMetrics.get().acquireWait.recordSince(begin);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for " + name, ex);
+        }
+        owner = Thread.currentThread();
+        ownerActivity = activity;
+        ownerSince = System.nanoTime();
+    }
+
+    /**
+     * Give up the connection acquired with {@link #acquire(String)}.
+     */
+    public void release() {
+        if (lock.getHoldCount() == 1) {
+            owner = null;
+            ownerActivity = null;
+        }
+        lock.unlock();
+    }
+
+    /**
+     * @return the number of threads waiting for the connection
+     */
+    public int getQueueLength() {
+        return lock.getQueueLength();
+    }
+
+    private SQLTimeoutException timeout(String activity, long timeout) {
+        Thread holder = owner;
+        String holderActivity = ownerActivity;
+        StringBuilder message = new StringBuilder();
+        message.append("Thread ").append(Thread.currentThread().getName()).append(" waited ").append(timeout)
+                .append(" ms for ").append(name);
+        if (activity != null) {
+            message.append(" to execute: ").append(activity);
+        }
+        message.append(". ").append(lock.getQueueLength()).append(" other thread(s) waiting.");
+        if (holder != null) {
+            message.append(" Held for ").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ownerSince))
+                    .append(" ms by thread ").append(holder.getName());
+            message.append(holderActivity == null ? "." : ", executing: " + holderActivity);
+        }
+        appendDeadlocks(message);
+
+        SQLTimeoutException exception = new SQLTimeoutException(message.toString());
+        if (holder != null) {
+            Throwable holderStack = new Throwable("stack trace of thread " + holder.getName() + " holding " + name);
+            holderStack.setStackTrace(holder.getStackTrace());
+            exception.initCause(holderStack);
+        }
+        return exception;
+    }
+
+    private static void appendDeadlocks(StringBuilder message) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] deadlocked = threads.findDeadlockedThreads();
+        if (deadlocked != null) {
+            message.append("\nDeadlocked threads:");
+            for (ThreadInfo info : threads.getThreadInfo(deadlocked, true, true)) {
+                message.append("\n").append(info);
+            }
+        }
+    }
+}
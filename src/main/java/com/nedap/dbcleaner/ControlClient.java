@@ -0,0 +1,104 @@
+package com.nedap.dbcleaner;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Starts, rolls back and commits cleaning in another JVM on the same machine, which connects with the
+ * dbcleaner.controlport property. Keeps its connection open, so a command takes one round trip over the loopback
+ * address.
+ *
+ * <pre>
+ * try (ControlClient control = new ControlClient(4711)) {
+ *     control.start();
+ *     ...
+ *     control.rollback();
+ * }
+ * </pre>
+ *
+ * A client is not thread safe.
+ */
+public class ControlClient implements Closeable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    /**
+     * The id of the cleaning session to control, or null for the default session
+     */
+    private final String sessionId;
+
+    /**
+     * Control the default session of the JVM listening on the given port.
+     */
+    public ControlClient(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * @param port the port the other JVM listens on
+     * @param sessionId the id of the {@link CleaningSession} to control, or null for the default session
+     * @throws IOException if the other JVM could not be reached
+     */
+    public ControlClient(int port, String sessionId) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.sessionId = sessionId;
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * See {@link CleaningSession#startTransactions()}.
+     */
+    public CleaningState start() throws IOException {
+        return send("START");
+    }
+
+    /**
+     * See {@link CleaningSession#rollbackTransactions()}.
+     */
+    public CleaningState rollback() throws IOException {
+        return send("ROLLBACK");
+    }
+
+    /**
+     * See {@link CleaningSession#commitTransactions()}.
+     */
+    public CleaningState commit() throws IOException {
+        return send("COMMIT");
+    }
+
+    public CleaningState status() throws IOException {
+        return send("STATUS");
+    }
+
+    /**
+     * @return the state of the session after the command
+     * @throws IOException if the command failed in the other JVM, or could not be sent
+     */
+    private CleaningState send(String command) throws IOException {
+        out.write(sessionId == null ? command + "\n" : command + " " + sessionId + "\n");
+        out.flush();
+        String answer = in.readLine();
+        if (answer == null) {
+            throw new IOException("the other JVM closed the control connection");
+        }
+        if (!answer.startsWith("OK ")) {
+            throw new IOException(command + " failed: " + answer.replaceFirst("^ERROR ", ""));
+        }
+        return CleaningState.valueOf(answer.substring(3));
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
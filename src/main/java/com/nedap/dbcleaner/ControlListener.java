@@ -0,0 +1,140 @@
+package com.nedap.dbcleaner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets another JVM on the same machine start, roll back and commit cleaning, for example a test runner that drives an
+ * application server through its user interface. Listens on a port of the loopback address only, for the commands of
+ * a {@link ControlClient}.
+ *
+ * The protocol is one line per command, {@code START}, {@code ROLLBACK}, {@code COMMIT} or {@code STATUS}, optionally
+ * followed by a space and the id of a {@link CleaningSession}; the default session is used otherwise. Sessions are not
+ * created on command, so an id that no session in this JVM has is refused. Every command is answered with one line:
+ * {@code OK} followed by the {@link CleaningState} of the session, or {@code ERROR} followed by the message of the
+ * failure.
+ */
+class ControlListener {
+
+    private static final Logger logger = Logger.getLogger(ControlListener.class.getName());
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dbcleaner control");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The listeners started in this JVM, by port
+     */
+    private static final Map<Integer, ControlListener> listeners = new HashMap<Integer, ControlListener>();
+
+    private final ServerSocket serverSocket;
+
+    private ControlListener(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Start listening on the given port of the loopback address, unless this JVM already does.
+     *
+     * @param port the port
+     * @throws IOException if the port could not be bound
+     */
+    static synchronized void listen(int port) throws IOException {
+        if (listeners.containsKey(port)) {
+            return;
+        }
+        ControlListener listener = new ControlListener(new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+        listeners.put(port, listener);
+        executor.execute(listener::accept);
+    }
+
+    /**
+     * Stop listening on the given port. Clients that are still connected are disconnected after their next command.
+     */
+    static synchronized void close(int port) throws IOException {
+        ControlListener listener = listeners.remove(port);
+        if (listener != null) {
+            listener.serverSocket.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "could not accept a control connection", ex);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            client.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+            String command;
+            while (!serverSocket.isClosed() && (command = in.readLine()) != null) {
+                out.write(execute(command.trim()) + "\n");
+                out.flush();
+            }
+        } catch (IOException ex) {
+            //the client went away, nothing to answer
+        }
+    }
+
+    /**
+     * @return the answer to the command
+     */
+    private static String execute(String command) {
+        int space = command.indexOf(' ');
+        String action = space < 0 ? command : command.substring(0, space);
+        CleaningSession session = CleaningSession.getDefault();
+        if (space >= 0) {
+            String id = command.substring(space + 1).trim();
+            session = CleaningSession.find(id);
+            if (session == null) {
+                return "ERROR unknown session " + id;
+            }
+        }
+        try {
+            switch (action.toUpperCase()) {
+                case "START":
+                    session.startTransactions();
+                    break;
+                case "ROLLBACK":
+                    session.rollbackTransactions();
+                    break;
+                case "COMMIT":
+                    session.commitTransactions();
+                    break;
+                case "STATUS":
+                    break;
+                default:
+                    return "ERROR unknown command " + action;
+            }
+            return "OK " + session.getState();
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "control command " + command + " failed", ex);
+            return "ERROR " + String.valueOf(ex.getMessage()).replace('\n', ' ');
+        }
+    }
+}
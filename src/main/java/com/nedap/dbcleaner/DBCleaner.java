@@ -1,19 +1,28 @@
 package com.nedap.dbcleaner;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
 
 /**
  * The DBCleaner JDBC driver
@@ -23,7 +32,67 @@ import java.util.logging.Logger;
 public class DBCleaner implements Driver {
 
     private static final String JDBCPREFIX = "jdbc:dbcleaner";
+    /**
+     * Prefix of URLs that name a template database, which is cloned for every worker, see {@link TemplateClones}
+     */
+    private static final String TEMPLATEPREFIX = JDBCPREFIX + ":template:";
     private static final String DBCLEANER_TRANSACTIONISOLATION = "dbcleaner.transactionisolation";
+    /**
+     * Milliseconds a thread waits for the shared underlying connection before it fails, 0 (the default) waits forever
+     */
+    private static final String DBCLEANER_ACQUIRETIMEOUT = "dbcleaner.acquiretimeout";
+    /**
+     * Number of idle prepared statements cached on the shared underlying connection, 0 (the default) disables the cache
+     */
+    private static final String DBCLEANER_STATEMENTCACHESIZE = "dbcleaner.statementcachesize";
+    /**
+     * Whether to add up the execution and fetch times of statements per normalized SQL
+     */
+    private static final String DBCLEANER_STATEMENTSTATISTICS = "dbcleaner.statementstatistics";
+    /**
+     * Statements that take longer than this many milliseconds are logged. Turns on statement statistics.
+     */
+    private static final String DBCLEANER_SLOWQUERYMILLIS = "dbcleaner.slowquerymillis";
+    /**
+     * Class name of an XA data source to open the shared underlying connection with, so it is committed with a two
+     * phase commit
+     */
+    private static final String DBCLEANER_XADATASOURCE = "dbcleaner.xadatasource";
+    /**
+     * Whether to keep a spare underlying connection, so the forced transaction is rolled back in the background
+     */
+    private static final String DBCLEANER_PIPELINEDROLLBACK = "dbcleaner.pipelinedrollback";
+    /**
+     * Whether commits and rollbacks of the application are emulated with savepoints while forced, instead of ignored
+     */
+    private static final String DBCLEANER_EMULATETRANSACTIONS = "dbcleaner.emulatetransactions";
+    /**
+     * Number of checkpoints kept of an embedded database, 4 by default
+     */
+    private static final String DBCLEANER_MAXCHECKPOINTS = "dbcleaner.maxcheckpoints";
+    /**
+     * Whether connections opened before the forced transaction starts open their actual database connection on first
+     * use, instead of right away
+     */
+    private static final String DBCLEANER_LAZYCONNECT = "dbcleaner.lazyconnect";
+    /**
+     * Estimated number of bytes of query results cached on the shared underlying connection while forced, 0 (the
+     * default) disables the cache
+     */
+    private static final String DBCLEANER_RESULTCACHEBYTES = "dbcleaner.resultcachebytes";
+    /**
+     * Port of the loopback address to listen on for the commands of a {@link ControlClient} in another JVM
+     */
+    private static final String DBCLEANER_CONTROLPORT = "dbcleaner.controlport";
+    /**
+     * Whether to check that rolling back restored the tables written while forced: counts or true to compare the
+     * number of rows, checksums to compare all rows
+     */
+    private static final String DBCLEANER_VERIFYROLLBACK = "dbcleaner.verifyrollback";
+    /**
+     * File to record the statements the application executes to, to replay them with a {@link WorkloadReplayer}
+     */
+    private static final String DBCLEANER_RECORDFILE = "dbcleaner.recordfile";
     /**
      * The last actual, underlying driver that was requested via a URL.
      */
@@ -31,7 +100,19 @@ public class DBCleaner implements Driver {
     /**
      * Instance cache of the underlying singleton connections
      */
-    private final static Map<ConnectionKey, TransactionWrappedConnection> transactionWrappedCache = Collections.synchronizedMap(new HashMap<ConnectionKey, TransactionWrappedConnection>());
+    private final static ConcurrentMap<ConnectionKey, TransactionWrappedConnection> transactionWrappedCache = new ConcurrentHashMap<ConnectionKey, TransactionWrappedConnection>();
+    /**
+     * Held while the underlying connection for a key is created, so callers for other keys do not wait
+     */
+    private final static ConcurrentMap<ConnectionKey, ReentrantLock> creationLocks = new ConcurrentHashMap<ConnectionKey, ReentrantLock>();
+    /**
+     * The underlying driver and URL per jdbc:dbcleaner URL, so connecting does not ask every registered driver again
+     */
+    private final static ConcurrentMap<String, ResolvedDriver> resolvedDrivers = new ConcurrentHashMap<String, ResolvedDriver>();
+    /**
+     * Beyond this many URLs, the resolved drivers are forgotten instead of growing without bound
+     */
+    private static final int MAX_RESOLVED_DRIVERS = 1000;
 
     static {
         Set<String> drivers = new TreeSet<String>();
@@ -114,7 +195,9 @@ public class DBCleaner implements Driver {
     }
 
     /**
-     * Ensure that a wrapper is present for the given url, properties and driver
+     * Ensure that a wrapper is present for the given url, properties and driver. Only callers for the same key wait for
+     * each other while the underlying connection is created; connects to other databases or sessions go ahead. A
+     * present wrapper is reused without waiting for it, even while it is rolling back or executing a statement.
      *
      * @param url
      * @param info
@@ -123,42 +206,300 @@ public class DBCleaner implements Driver {
      * @throws SQLException
      */
     protected TransactionWrappedConnection ensureWrapperPresent(String url, Properties info, Driver d) throws SQLException {
-        //create the wrapped transaction
-        TransactionWrappedConnection transactionWrappedConnection;
-        synchronized (transactionWrappedCache) {
-            ConnectionKey key = new ConnectionKey(url, info);
-            transactionWrappedConnection = DBCleaner.transactionWrappedCache.get(key);
-            if (transactionWrappedConnection != null && transactionWrappedConnection.isClosed()) {
-                transactionWrappedConnection = null;
+        CleaningSession session = CleaningSession.current();
+        ConnectionKey key = new ConnectionKey(url, info, session);
+        TransactionWrappedConnection transactionWrappedConnection = transactionWrappedCache.get(key);
+        if (transactionWrappedConnection != null && !transactionWrappedConnection.isForceClosed()) {
+            return transactionWrappedConnection;
+        }
+        ReentrantLock creationLock = creationLocks.computeIfAbsent(key, k -> new ReentrantLock());
+        creationLock.lock();
+        try {
+            transactionWrappedConnection = transactionWrappedCache.get(key);
+            if (transactionWrappedConnection == null || transactionWrappedConnection.isForceClosed()) {
+                transactionWrappedConnection = createWrapper(url, info, d, session);
+                transactionWrappedCache.put(key, transactionWrappedConnection);
             }
-            if (transactionWrappedConnection == null) {
-                Properties underlyingProperties = getUnderlyingProperties(info);
-                Connection c = d.connect(url, underlyingProperties);
-                String isolationLevel = info.getProperty(DBCLEANER_TRANSACTIONISOLATION, "");
-                switch(isolationLevel) {
-                    case "read_committed":
-                        c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-                        break;
-                    case "read_uncommitted":
-                        c.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-                        break;
-                    case "repeatable_read":
-                        c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-                        break;
-                    case "serializable":
-                        c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                        break;
-                }
-                if (c == null) {
-                    throw new SQLException("invalid or unknown driver url: " + url);
+        } finally {
+            creationLock.unlock();
+        }
+        return transactionWrappedConnection;
+    }
+
+    private TransactionWrappedConnection createWrapper(String url, Properties info, Driver d, CleaningSession session)
+            throws SQLException {
+        //parse the properties and start what they ask for first, so a mistake does not leave a connection behind
+        Integer maxCheckpoints = parseInteger(info, DBCLEANER_MAXCHECKPOINTS);
+        Long acquireTimeout = parseLong(info, DBCLEANER_ACQUIRETIMEOUT);
+        Integer statementCacheSize = parseInteger(info, DBCLEANER_STATEMENTCACHESIZE);
+        Integer controlPort = parseInteger(info, DBCLEANER_CONTROLPORT);
+        Long resultCacheBytes = parseLong(info, DBCLEANER_RESULTCACHEBYTES);
+        Long slowQueryMillis = parseLong(info, DBCLEANER_SLOWQUERYMILLIS);
+        String verifyRollback = info.getProperty(DBCLEANER_VERIFYROLLBACK, "false").trim();
+        if (!verifyRollback.equals("false") && !verifyRollback.equals("true") && !verifyRollback.equals("counts")
+                && !verifyRollback.equals("checksums")) {
+            throw new SQLException(DBCLEANER_VERIFYROLLBACK + " must be false, true, counts or checksums, not "
+                    + verifyRollback);
+        }
+        if (controlPort != null) {
+            try {
+                ControlListener.listen(controlPort);
+            } catch (IOException ex) {
+                throw new SQLException("could not listen for control commands on port " + controlPort, ex);
+            }
+        }
+        WorkloadRecorder workloadRecorder = null;
+        String recordFile = info.getProperty(DBCLEANER_RECORDFILE);
+        if (recordFile != null) {
+            try {
+                workloadRecorder = WorkloadRecorder.forFile(Paths.get(recordFile));
+            } catch (IOException ex) {
+                throw new SQLException("could not record the workload to " + recordFile, ex);
+            }
+        }
+
+        String xaDataSource = info.getProperty(DBCLEANER_XADATASOURCE);
+        XAConnection xaConnection = null;
+        Connection c;
+        if (xaDataSource != null) {
+            xaConnection = createXADataSource(xaDataSource, url, info).getXAConnection();
+            c = xaConnection.getConnection();
+        } else {
+            c = d.connect(url, getUnderlyingProperties(info));
+        }
+        if (c == null) {
+            throw new SQLException("invalid or unknown driver url: " + url);
+        }
+        TransactionWrappedConnection transactionWrappedConnection = null;
+        try {
+            setTransactionIsolation(c, info);
+            transactionWrappedConnection = xaConnection == null
+                    ? new TransactionWrappedConnection(c, session)
+                    : new TransactionWrappedConnection(c, xaConnection, session);
+            if (xaConnection == null && Boolean.parseBoolean(info.getProperty(DBCLEANER_PIPELINEDROLLBACK))) {
+                transactionWrappedConnection.enablePipelinedRollback(() -> {
+                    Connection standby = d.connect(url, getUnderlyingProperties(info));
+                    if (standby == null) {
+                        throw new SQLException("invalid or unknown driver url: " + url);
+                    }
+                    setTransactionIsolation(standby, info);
+                    return standby;
+                });
+            }
+        } catch (SQLException | RuntimeException ex) {
+            //close and unregister the connection, so a retry does not leave another one behind
+            try {
+                if (transactionWrappedConnection != null) {
+                    transactionWrappedConnection.forceClose();
+                } else if (xaConnection != null) {
+                    xaConnection.close();
+                } else {
+                    c.close();
                 }
-                transactionWrappedConnection = new TransactionWrappedConnection(c);
-                transactionWrappedCache.put(key, transactionWrappedConnection);
+            } catch (SQLException closing) {
+                ex.addSuppressed(closing);
             }
+            throw ex;
+        }
+        transactionWrappedConnection.setEmulateTransactions(
+                Boolean.parseBoolean(info.getProperty(DBCLEANER_EMULATETRANSACTIONS)));
+        if (maxCheckpoints != null) {
+            transactionWrappedConnection.setMaxCheckpoints(maxCheckpoints);
+        }
+        if (acquireTimeout != null) {
+            transactionWrappedConnection.getScheduler().setTimeoutMillis(acquireTimeout);
+        }
+        if (statementCacheSize != null) {
+            transactionWrappedConnection.getStatementCache().setMaxSize(statementCacheSize);
+        }
+        if (!verifyRollback.equals("false")) {
+            transactionWrappedConnection.enableRollbackVerification(verifyRollback.equals("checksums"));
+        }
+        transactionWrappedConnection.setWorkloadRecorder(workloadRecorder);
+        if (resultCacheBytes != null) {
+            transactionWrappedConnection.getResultCache().setMaxBytes(resultCacheBytes);
+        }
+        StatementStatistics statementStatistics = transactionWrappedConnection.getStatementStatistics();
+        statementStatistics.setEnabled(Boolean.parseBoolean(info.getProperty(DBCLEANER_STATEMENTSTATISTICS)));
+        if (slowQueryMillis != null) {
+            statementStatistics.setSlowThresholdMillis(slowQueryMillis);
+            statementStatistics.setEnabled(true);
         }
         return transactionWrappedConnection;
     }
 
+    /**
+     * @return the value of the property, or null if it is not set
+     * @throws SQLException if the value is not a number
+     */
+    private static Integer parseInteger(Properties info, String property) throws SQLException {
+        Long value = parseLong(info, property);
+        if (value != null && (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)) {
+            throw new SQLException(property + " is out of range: " + value);
+        }
+        return value == null ? null : value.intValue();
+    }
+
+    /**
+     * @return the value of the property, or null if it is not set
+     * @throws SQLException if the value is not a number
+     */
+    private static Long parseLong(Properties info, String property) throws SQLException {
+        String value = info.getProperty(property);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new SQLException(property + " must be a number, not " + value, ex);
+        }
+    }
+
+    private static void setTransactionIsolation(Connection c, Properties info) throws SQLException {
+        String isolationLevel = info.getProperty(DBCLEANER_TRANSACTIONISOLATION, "");
+        switch(isolationLevel) {
+            case "read_committed":
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                break;
+            case "read_uncommitted":
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+                break;
+            case "repeatable_read":
+                c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                break;
+            case "serializable":
+                c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                break;
+        }
+    }
+
+    /**
+     * Create an XA data source of the given class, and configure it with the URL and, if given, the user and password
+     * through its bean setters.
+     */
+    private static XADataSource createXADataSource(String className, String url, Properties info) throws SQLException {
+        try {
+            XADataSource dataSource = (XADataSource) Class.forName(className).getDeclaredConstructor().newInstance();
+            setProperty(dataSource, url, "setUrl", "setURL");
+            if (info.getProperty("user") != null) {
+                setProperty(dataSource, info.getProperty("user"), "setUser");
+            }
+            if (info.getProperty("password") != null) {
+                setProperty(dataSource, info.getProperty("password"), "setPassword");
+            }
+            return dataSource;
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new SQLException("could not create XA data source " + className, ex);
+        }
+    }
+
+    private static void setProperty(Object bean, String value, String... setters) throws ReflectiveOperationException {
+        for (String setter : setters) {
+            try {
+                bean.getClass().getMethod(setter, String.class).invoke(bean, value);
+                return;
+            } catch (NoSuchMethodException ex) {
+                //try the next spelling
+            }
+        }
+        throw new NoSuchMethodException(bean.getClass().getName() + "." + setters[0]);
+    }
+
+    /**
+     * Create the shared underlying connections for the given jdbc:dbcleaner URLs in the current cleaning session, in
+     * parallel, so the first test does not pay for setting them up.
+     *
+     * @param urls jdbc:dbcleaner URLs, without properties
+     * @throws SQLException if one of the connections could not be created
+     */
+    public static void prewarm(String... urls) throws SQLException {
+        Map<String, Properties> connections = new LinkedHashMap<String, Properties>();
+        for (String url : urls) {
+            connections.put(url, new Properties());
+        }
+        prewarm(connections);
+    }
+
+    /**
+     * Create the shared underlying connections for the given jdbc:dbcleaner URLs and properties in the current
+     * cleaning session, in parallel. The properties must be the same as the ones later passed to
+     * {@link DriverManager#getConnection(String, Properties)}, otherwise another connection is created.
+     *
+     * @param connections jdbc:dbcleaner URLs and their properties
+     * @throws SQLException if one of the connections could not be created
+     */
+    public static void prewarm(Map<String, Properties> connections) throws SQLException {
+        final CleaningSession session = CleaningSession.current();
+        final List<SQLException> failures = Collections.synchronizedList(new ArrayList<SQLException>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final Map.Entry<String, Properties> connection : connections.entrySet()) {
+            Thread thread = new Thread(() -> {
+                session.bind();
+                try {
+                    prewarm(connection.getKey(), connection.getValue());
+                } catch (SQLException ex) {
+                    failures.add(ex);
+                } finally {
+                    CleaningSession.unbind();
+                }
+            }, "dbcleaner prewarm " + connection.getKey());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while creating connections", ex);
+            }
+        }
+        if (!failures.isEmpty()) {
+            SQLException failure = failures.get(0);
+            for (SQLException other : failures.subList(1, failures.size())) {
+                failure.setNextException(other);
+            }
+            throw failure;
+        }
+    }
+
+    private static void prewarm(String url, Properties info) throws SQLException {
+        DBCleaner cleaner = new DBCleaner();
+        ResolvedDriver resolved = cleaner.resolve(url);
+        if (resolved == null) {
+            throw new SQLException("invalid or unknown driver url: " + url);
+        }
+        cleaner.ensureWrapperPresent(cleaner.underlyingUrl(resolved, info), info, resolved.driver);
+    }
+
+    /**
+     * Forget the underlying connections of a closed session.
+     */
+    static void forget(CleaningSession session) {
+        transactionWrappedCache.keySet().removeIf(key -> key.session == session);
+        creationLocks.keySet().removeIf(key -> key.session == session);
+    }
+
+    /**
+     * Close and forget the shared underlying connections to the given underlying URL, in all sessions.
+     */
+    static void closeUnderlyingConnections(String url) throws SQLException {
+        for (Map.Entry<ConnectionKey, TransactionWrappedConnection> entry : transactionWrappedCache.entrySet()) {
+            if (entry.getKey().url.equals(url) && transactionWrappedCache.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().forceClose();
+            }
+        }
+    }
+
+    /**
+     * Drop the clones of template databases this JVM created, now instead of when the JVM exits. Connecting to a
+     * template URL again creates a new clone.
+     */
+    public static void dropTemplateClones() {
+        TemplateClones.dropAll();
+    }
+
     private Properties getUnderlyingProperties(Properties info) {
         Properties properties = new Properties();
         if (info != null) {
@@ -174,58 +515,138 @@ public class DBCleaner implements Driver {
      * Accepts a URL that starts with jdbc:dbcleaner, and returns the underlying driver
      */
     private Driver getUnderlyingDriver(String url) throws SQLException {
+        ResolvedDriver resolved = resolve(url);
+        return resolved == null ? null : resolved.driver;
+    }
 
-        if (url.startsWith(JDBCPREFIX)) {
+    /**
+     * Accepts a URL that starts with jdbc:dbcleaner, and returns the underlying driver and URL. Remembered per URL,
+     * until {@link #clearDriverCache()} is called.
+     */
+    private ResolvedDriver resolve(String url) throws SQLException {
+        if (!url.startsWith(JDBCPREFIX)) {
+            return null;
+        }
+        ResolvedDriver resolved = resolvedDrivers.get(url);
+        if (resolved != null) {
+            return resolved;
+        }
 
-            url = getUnderlyingUrl(url);
-            Enumeration e = DriverManager.getDrivers();
+        String underlyingUrl = getUnderlyingUrl(url);
+        Enumeration e = DriverManager.getDrivers();
 
-            while (e.hasMoreElements()) {
-                Driver d = (Driver) e.nextElement();
+        while (e.hasMoreElements()) {
+            Driver d = (Driver) e.nextElement();
 
-                if (d.acceptsURL(url)) {
-                    return d;
+            if (d.acceptsURL(underlyingUrl)) {
+                if (resolvedDrivers.size() >= MAX_RESOLVED_DRIVERS) {
+                    resolvedDrivers.clear();
                 }
+                resolved = new ResolvedDriver(d, underlyingUrl, url.startsWith(TEMPLATEPREFIX));
+                resolvedDrivers.put(url, resolved);
+                return resolved;
             }
         }
         return null;
     }
 
     /**
-     * Strip jdbc:dbcleaner from the URL, then add jdbc: to it.
+     * Forget which underlying driver handles which URL. Call this after registering or deregistering a driver directly
+     * with the {@link DriverManager}; {@link #registerDriver(Driver)} and {@link #deregisterDriver(Driver)} do so
+     * themselves.
+     */
+    public static void clearDriverCache() {
+        resolvedDrivers.clear();
+    }
+
+    /**
+     * Register an underlying driver with the {@link DriverManager}, and forget the drivers resolved so far.
+     */
+    public static void registerDriver(Driver driver) throws SQLException {
+        DriverManager.registerDriver(driver);
+        clearDriverCache();
+    }
+
+    /**
+     * Deregister an underlying driver from the {@link DriverManager}, and forget the drivers resolved so far.
+     */
+    public static void deregisterDriver(Driver driver) throws SQLException {
+        DriverManager.deregisterDriver(driver);
+        clearDriverCache();
+    }
+
+    /**
+     * Strip jdbc:dbcleaner, or jdbc:dbcleaner:template, from the URL, then add jdbc: to it.
      *
      * @param url
      * @return
      */
     protected String getUnderlyingUrl(String url) {
+        if (url.startsWith(TEMPLATEPREFIX)) {
+            return "jdbc:" + url.substring(TEMPLATEPREFIX.length());
+        }
         url = "jdbc:" + url.substring(JDBCPREFIX.length() + 1);
         return url;
     }
 
+    /**
+     * @return the URL to connect the underlying driver to: the resolved URL, or the clone of this worker if that names
+     * a template database
+     */
+    private String underlyingUrl(ResolvedDriver resolved, Properties info) throws SQLException {
+        if (!resolved.template) {
+            return resolved.url;
+        }
+        return TemplateClones.cloneOf(resolved.driver, resolved.url, getUnderlyingProperties(info));
+    }
+
     @Override
     public Connection connect(String url, Properties info) throws SQLException {
-        Driver d = getUnderlyingDriver(url);
-        if (d == null) {
+        ResolvedDriver resolved = resolve(url);
+        if (resolved == null) {
             return null;
         }
+        Driver d = resolved.driver;
 
         // get actual URL that the real driver expects
         // (strip off "jdbc:dbcleaner" from url)
-        url = getUnderlyingUrl(url);
-        TransactionWrappedConnection transactionWrappedConnection = ensureWrapperPresent(url, info, d);
+        String underlyingUrl = underlyingUrl(resolved, info);
+        TransactionWrappedConnection transactionWrappedConnection = ensureWrapperPresent(underlyingUrl, info, d);
         recentRealDriver = d;
 
         //now create the actual connection
         Connection c = null;
-        if (!TransactionUtil.isInForcedTransaction()) {
-            c = d.connect(url, getUnderlyingProperties(info));
+        if (!transactionWrappedConnection.getSession().isInForcedTransaction()) {
+            if (Boolean.parseBoolean(info.getProperty(DBCLEANER_LAZYCONNECT))) {
+                return new SwitchingConnectionWrapper(() -> connectUnderlying(url, resolved, info),
+                        transactionWrappedConnection);
+            }
+            c = connectUnderlying(url, resolved, info);
         }
-        SwitchingConnectionWrapper wrapper = new SwitchingConnectionWrapper(c, transactionWrappedConnection, url, info);
+        SwitchingConnectionWrapper wrapper = new SwitchingConnectionWrapper(c, transactionWrappedConnection, underlyingUrl, info);
 
 
         return wrapper;
     }
 
+    /**
+     * Open an actual database connection that is not shared. If the remembered driver no longer accepts the URL, it is
+     * looked up again.
+     */
+    private Connection connectUnderlying(String url, ResolvedDriver resolved, Properties info) throws SQLException {
+        Connection c = resolved.driver.connect(underlyingUrl(resolved, info), getUnderlyingProperties(info));
+        if (c == null) {
+            //the remembered driver no longer accepts the URL, look it up again
+            resolvedDrivers.remove(url);
+            ResolvedDriver again = resolve(url);
+            if (again == null || again.driver == resolved.driver) {
+                throw new SQLException("invalid or unknown driver url: " + url);
+            }
+            return connectUnderlying(url, again, info);
+        }
+        return c;
+    }
+
     @Override
     public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
             throws SQLException {
@@ -244,7 +665,26 @@ public class DBCleaner implements Driver {
 }
 
 /**
- * Properties + JDBC url of an underlying connection, for use as cache key
+ * An underlying driver and the URL to pass to it
+ */
+class ResolvedDriver {
+
+    final Driver driver;
+    final String url;
+    /**
+     * Whether the URL names a template database, which is cloned before connecting
+     */
+    final boolean template;
+
+    ResolvedDriver(Driver driver, String url, boolean template) {
+        this.driver = driver;
+        this.url = url;
+        this.template = template;
+    }
+}
+
+/**
+ * Properties + JDBC url + cleaning session of an underlying connection, for use as cache key
  *
  * @author pieter.bos
  */
@@ -252,23 +692,25 @@ class ConnectionKey {
 
     Properties info;
     String url;
+    CleaningSession session;
 
-    public ConnectionKey(String url, Properties info) {
+    public ConnectionKey(String url, Properties info, CleaningSession session) {
         this.url = url;
         this.info = info;
+        this.session = session;
     }
 
     @Override
     public boolean equals(Object other) {
         if (other instanceof ConnectionKey) {
             ConnectionKey o = (ConnectionKey) other;
-            return info.equals(o.info) && url.equals(o.url);
+            return info.equals(o.info) && url.equals(o.url) && session == o.session;
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return info.hashCode() + url.hashCode();
+        return info.hashCode() + url.hashCode() + session.hashCode();
     }
 }
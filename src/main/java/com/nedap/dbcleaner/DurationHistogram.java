@@ -0,0 +1,120 @@
+package com.nedap.dbcleaner;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, with buckets that double in size, from 1 microsecond up. Recording is a few additions,
+ * without locks, so it can stay on all the time. Percentiles are rounded up to the bucket boundary.
+ */
+public class DurationHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public DurationHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Record the time passed since the given start.
+     *
+     * @param startNanos a value of {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public Snapshot getSnapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, count.sum(), totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * The state of a histogram at one moment, as shown over JMX.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / count);
+        }
+
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxNanos);
+        }
+
+        public long getP50Micros() {
+            return percentileMicros(0.5);
+        }
+
+        public long getP90Micros() {
+            return percentileMicros(0.9);
+        }
+
+        public long getP99Micros() {
+            return percentileMicros(0.99);
+        }
+
+        /**
+         * @param fraction between 0 and 1
+         * @return the upper bound, in microseconds, of the bucket the percentile falls in
+         */
+        public long percentileMicros(double fraction) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            long threshold = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(i == 0 ? 0 : 1L << i, getMaxMicros());
+                }
+            }
+            return 0;
+        }
+    }
+}
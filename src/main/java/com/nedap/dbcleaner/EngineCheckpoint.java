@@ -0,0 +1,195 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of an embedded HSQLDB or H2 database, held in memory. The schema is taken with the SCRIPT statement of the
+ * engine, and the rows of every table are read. Restoring drops everything in the database and recreates it from the
+ * copy, so unlike a rollback it also undoes DDL.
+ */
+class EngineCheckpoint {
+
+    /**
+     * Statements in the script that the database already has, or that may not be run again
+     */
+    private static final String[] SKIPPED_STATEMENTS = {"--", "CREATE USER", "ALTER USER", "GRANT",
+        "CREATE SCHEMA PUBLIC", "SET DATABASE UNIQUE NAME", "SET FILES", "ALTER SEQUENCE SYSTEM_LOBS"};
+    private static final int BATCH_SIZE = 1000;
+
+    private final boolean h2;
+    private final List<String> script;
+    /**
+     * The rows of every table, by qualified and quoted table name
+     */
+    private final Map<String, List<Object[]>> tables;
+
+    private EngineCheckpoint(boolean h2, List<String> script, Map<String, List<Object[]>> tables) {
+        this.h2 = h2;
+        this.script = script;
+        this.tables = tables;
+    }
+
+    /**
+     * @return whether checkpoints can be taken of the database of the given connection
+     */
+    static boolean isSupported(Connection connection) throws SQLException {
+        String product = connection.getMetaData().getDatabaseProductName();
+        return product.startsWith("HSQL") || product.equals("H2");
+    }
+
+    /**
+     * Copy the schema and the rows of the database, as the given connection sees them.
+     */
+    static EngineCheckpoint take(Connection connection) throws SQLException {
+        boolean h2 = connection.getMetaData().getDatabaseProductName().equals("H2");
+        List<String> script = new ArrayList<String>();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(h2 ? "SCRIPT NODATA" : "SCRIPT");
+            try (ResultSet lines = statement.getResultSet()) {
+                while (lines.next()) {
+                    String sql = lines.getString(1);
+                    if (!isSkipped(sql)) {
+                        script.add(sql);
+                    }
+                }
+            }
+        }
+        Map<String, List<Object[]>> tables = new LinkedHashMap<String, List<Object[]>>();
+        for (String table : tableNames(connection)) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            try (Statement select = connection.createStatement();
+                    ResultSet result = select.executeQuery("SELECT * FROM " + table)) {
+                int columns = result.getMetaData().getColumnCount();
+                while (result.next()) {
+                    Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = result.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+            tables.put(table, rows);
+        }
+        return new EngineCheckpoint(h2, script, tables);
+    }
+
+    /**
+     * Drop everything in the database, and recreate it from this copy. Commits, because the engine commits the DDL
+     * anyway.
+     */
+    void restore(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (h2) {
+                statement.execute("DROP ALL OBJECTS");
+            } else {
+                for (String schema : schemaNames(connection)) {
+                    statement.execute("DROP SCHEMA " + quote(schema) + " CASCADE");
+                }
+            }
+        }
+        copyInto(connection);
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Recreate the copied schema and rows in an empty database.
+     */
+    void copyInto(Connection connection) throws SQLException {
+        String integrity = h2 ? "SET REFERENTIAL_INTEGRITY " : "SET DATABASE REFERENTIAL INTEGRITY ";
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : script) {
+                statement.execute(sql);
+            }
+            statement.execute(integrity + "FALSE");
+            try {
+                for (Map.Entry<String, List<Object[]>> table : tables.entrySet()) {
+                    insert(connection, table.getKey(), table.getValue());
+                }
+            } finally {
+                statement.execute(integrity + "TRUE");
+            }
+        }
+    }
+
+    private static void insert(Connection connection, String table, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        int columns = rows.get(0).length;
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+        for (int i = 0; i < columns; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        try (PreparedStatement insert = connection.prepareStatement(sql.append(")").toString())) {
+            int batched = 0;
+            for (Object[] row : rows) {
+                for (int i = 0; i < columns; i++) {
+                    insert.setObject(i + 1, row[i]);
+                }
+                insert.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            if (batched % BATCH_SIZE != 0) {
+                insert.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * @return the qualified, quoted names of the tables outside the system schemas
+     */
+    private static List<String> tableNames(Connection connection) throws SQLException {
+        List<String> names = new ArrayList<String>();
+        try (ResultSet result = connection.getMetaData().getTables(null, null, "%", new String[]{"TABLE"})) {
+            while (result.next()) {
+                String schema = result.getString("TABLE_SCHEM");
+                if (!isSystemSchema(schema)) {
+                    names.add(quote(schema) + "." + quote(result.getString("TABLE_NAME")));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static List<String> schemaNames(Connection connection) throws SQLException {
+        List<String> names = new ArrayList<String>();
+        try (ResultSet result = connection.getMetaData().getSchemas()) {
+            while (result.next()) {
+                String schema = result.getString("TABLE_SCHEM");
+                if (!isSystemSchema(schema)) {
+                    names.add(schema);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static boolean isSystemSchema(String schema) {
+        return schema.equals("INFORMATION_SCHEMA") || schema.startsWith("SYSTEM_");
+    }
+
+    private static boolean isSkipped(String sql) {
+        for (String skipped : SKIPPED_STATEMENTS) {
+            if (sql.startsWith(skipped)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,246 @@
+package com.nedap.dbcleaner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Loads SQL scripts, such as the seed data of tests. A script is read as a stream and split into statements one at a
+ * time, so it is never held in memory as a whole. Consecutive INSERT statements are executed as JDBC batches, which
+ * saves a round trip per row; other statements are executed one by one, in script order.
+ *
+ * Statements are separated by semicolons. Semicolons in quoted strings and identifiers, and comments, are recognized.
+ * Scripts that separate statements otherwise, such as procedure definitions with a custom delimiter, are not supported.
+ *
+ * Load with a connection of the current session after {@link TransactionUtil#startTransactions()}, and the script
+ * runs on the shared connection, in the forced transaction.
+ */
+public class FixtureLoader {
+
+    private static final Logger logger = Logger.getLogger(FixtureLoader.class.getName());
+    private static final Pattern INSERT = Pattern.compile("^INSERT\\b", Pattern.CASE_INSENSITIVE);
+
+    private final int batchSize;
+
+    /**
+     * Create a loader that batches up to 500 INSERTs.
+     */
+    public FixtureLoader() {
+        this(500);
+    }
+
+    /**
+     * @param batchSize the maximum number of INSERTs to execute in one batch
+     */
+    public FixtureLoader(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be at least 1, not " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Execute the statements of a UTF-8 script file.
+     *
+     * @param connection the connection to execute the statements with
+     * @param script the script
+     * @return how much was loaded, and how fast
+     * @throws IOException if the script could not be read
+     * @throws SQLException if a statement failed. The statements before it have been executed.
+     */
+    public Result load(Connection connection, Path script) throws IOException, SQLException {
+        try (Reader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+            Result result = load(connection, reader);
+            logger.fine("Loaded " + script + ": " + result);
+            return result;
+        }
+    }
+
+    /**
+     * Execute the statements of a script. The reader is not closed.
+     *
+     * @param connection the connection to execute the statements with
+     * @param script the script
+     * @return how much was loaded, and how fast
+     * @throws IOException if the script could not be read
+     * @throws SQLException if a statement failed. The statements before it have been executed.
+     */
+    public Result load(Connection connection, Reader script) throws IOException, SQLException {
+        long start = System.nanoTime();
+        ScriptReader statements = new ScriptReader(script);
+        long executed = 0;
+        long rows = 0;
+        try (Statement statement = connection.createStatement()) {
+            int batched = 0;
+            String sql;
+            while ((sql = statements.next()) != null) {
+                executed++;
+                if (INSERT.matcher(sql).find()) {
+                    statement.addBatch(sql);
+                    if (++batched == batchSize) {
+                        rows += executeBatch(statement);
+                        batched = 0;
+                    }
+                    continue;
+                }
+                if (batched > 0) {
+                    rows += executeBatch(statement);
+                    batched = 0;
+                }
+                if (!statement.execute(sql) && statement.getUpdateCount() > 0) {
+                    rows += statement.getUpdateCount();
+                }
+            }
+            if (batched > 0) {
+                rows += executeBatch(statement);
+            }
+        }
+        return new Result(executed, rows, System.nanoTime() - start);
+    }
+
+    /**
+     * @return the number of rows the batch changed, counting one for every statement of which the driver does not
+     * tell
+     */
+    private static long executeBatch(Statement statement) throws SQLException {
+        long rows = 0;
+        for (int count : statement.executeBatch()) {
+            rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+        }
+        return rows;
+    }
+
+    /**
+     * What a script loaded, and how long it took
+     */
+    public static class Result {
+
+        private final long statements;
+        private final long rows;
+        private final long nanos;
+
+        Result(long statements, long rows, long nanos) {
+            this.statements = statements;
+            this.rows = rows;
+            this.nanos = nanos;
+        }
+
+        public long getStatements() {
+            return statements;
+        }
+
+        /**
+         * @return the number of rows the statements inserted or changed
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return statements + " statements, " + rows + " rows in " + getMillis() + " ms, "
+                    + Math.round(getRowsPerSecond()) + " rows/s";
+        }
+    }
+
+    /**
+     * Splits a script into statements, one at a time. Comments are left out.
+     */
+    private static class ScriptReader {
+
+        private final BufferedReader reader;
+
+        ScriptReader(Reader reader) {
+            this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        /**
+         * @return the next statement, without its semicolon, or null at the end of the script
+         */
+        String next() throws IOException {
+            StringBuilder sql = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == ';') {
+                    if (!isBlank(sql)) {
+                        return sql.toString().trim();
+                    }
+                    sql.setLength(0);
+                } else if (c == '\'' || c == '"' || c == '`') {
+                    quoted(sql, (char) c);
+                } else if (c == '-' && peek() == '-') {
+                    reader.readLine();
+                    sql.append('\n');
+                } else if (c == '/' && peek() == '*') {
+                    reader.read();
+                    skipBlockComment();
+                    sql.append(' ');
+                } else {
+                    sql.append((char) c);
+                }
+            }
+            return isBlank(sql) ? null : sql.toString().trim();
+        }
+
+        /**
+         * Copy a quoted string or identifier. A doubled quote inside it stands for the quote itself.
+         */
+        private void quoted(StringBuilder sql, char quote) throws IOException {
+            sql.append(quote);
+            int c;
+            while ((c = reader.read()) != -1) {
+                sql.append((char) c);
+                if (c == quote) {
+                    if (peek() != quote) {
+                        return;
+                    }
+                    sql.append((char) reader.read());
+                }
+            }
+        }
+
+        private void skipBlockComment() throws IOException {
+            int previous = -1;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (previous == '*' && c == '/') {
+                    return;
+                }
+                previous = c;
+            }
+        }
+
+        private int peek() throws IOException {
+            reader.mark(1);
+            int c = reader.read();
+            reader.reset();
+            return c;
+        }
+
+        private static boolean isBlank(StringBuilder sql) {
+            for (int i = 0; i < sql.length(); i++) {
+                if (!Character.isWhitespace(sql.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
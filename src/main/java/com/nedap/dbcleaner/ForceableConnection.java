@@ -13,4 +13,21 @@ public interface ForceableConnection {
     void forceRollbackTransaction() throws SQLException;
 
     void forceCommitTransaction() throws SQLException;
+
+    /**
+     * Mark a named savepoint inside the forced transaction.
+     */
+    void forceSetSavepoint(String name) throws SQLException;
+
+    /**
+     * Roll back to a named savepoint inside the forced transaction. The savepoint itself remains valid, savepoints set
+     * after it are discarded.
+     */
+    void forceRollbackToSavepoint(String name) throws SQLException;
+
+    /**
+     * Release a named savepoint, keeping its changes in the forced transaction. Savepoints set after it are released
+     * as well.
+     */
+    void forceReleaseSavepoint(String name) throws SQLException;
 }
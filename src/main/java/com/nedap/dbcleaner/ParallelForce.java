@@ -0,0 +1,104 @@
+package com.nedap.dbcleaner;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a step, such as a forced rollback, to several underlying connections at the same time, so that cleaning
+ * several databases takes as long as the slowest one instead of all of them added up. Every connection gets the step,
+ * also when it fails on others, and the failures are returned together.
+ */
+class ParallelForce {
+
+    /**
+     * A step to apply to one connection
+     */
+    interface Step<T> {
+
+        void apply(T connection) throws SQLException;
+    }
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dbcleaner force");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Apply the step to all connections in parallel, and wait until it is done everywhere.
+     *
+     * @return the failures, empty if the step succeeded on every connection
+     */
+    static <T> List<SQLException> onAll(List<T> connections, Step<T> step) {
+        List<SQLException> failures = new ArrayList<SQLException>();
+        if (connections.size() < 2) {
+            return onEach(connections, step);
+        }
+        List<Future<SQLException>> results = new ArrayList<Future<SQLException>>();
+        for (final T connection : connections.subList(1, connections.size())) {
+            results.add(executor.submit(() -> apply(step, connection)));
+        }
+        //the calling thread takes the first connection itself
+        SQLException first = apply(step, connections.get(0));
+        if (first != null) {
+            failures.add(first);
+        }
+        boolean interrupted = false;
+        for (Future<SQLException> result : results) {
+            while (true) {
+                try {
+                    SQLException failure = result.get();
+                    if (failure != null) {
+                        failures.add(failure);
+                    }
+                    break;
+                } catch (InterruptedException ex) {
+                    //every connection must be done before the cleaning can go on
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    failures.add(new SQLException(ex.getCause()));
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failures;
+    }
+
+    /**
+     * Apply the step to the connections one after the other.
+     *
+     * @return the failures, empty if the step succeeded on every connection
+     */
+    static <T> List<SQLException> onEach(List<T> connections, Step<T> step) {
+        List<SQLException> failures = new ArrayList<SQLException>();
+        for (T connection : connections) {
+            SQLException failure = apply(step, connection);
+            if (failure != null) {
+                failures.add(failure);
+            }
+        }
+        return failures;
+    }
+
+    private static <T> SQLException apply(Step<T> step, T connection) {
+        try {
+            step.apply(connection);
+            return null;
+        } catch (SQLException ex) {
+            CleanerMetrics.get().failures.increment();
+            return ex;
+        } catch (RuntimeException ex) {
+            //a driver or wrapper bug must not keep the step from the other connections
+            CleanerMetrics.get().failures.increment();
+            return new SQLException(ex);
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package com.nedap.dbcleaner;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Wraps a JDBC PreparedStatement and remembers its SQL, so the connection wrapper that created it can see what it
+ * executes. Like {@link StatementWrapper}, it is prepared again when the connection wrapper switches to another
+ * underlying connection; its parameters and batched parameters are recorded for that.
+ */
+public class PreparedStatementWrapper extends StatementWrapper implements PreparedStatement {
+
+    protected final String sql;
+    /**
+     * The parameters to set again after preparing again, by index, or by name for a {@link CallableStatementWrapper}
+     */
+    private final Map<Object, Setting<PreparedStatement>> parameters = new HashMap<Object, Setting<PreparedStatement>>();
+    /**
+     * The parameters of each {@link #addBatch()} since the last execution or clear
+     */
+    private final List<Map<Object, Setting<PreparedStatement>>> batchParameters
+            = new ArrayList<Map<Object, Setting<PreparedStatement>>>();
+    /**
+     * The values of the parameters by index, to look up the result of the query in the result cache of the connection
+     * wrapper and to record the workload, or null if it does neither. A null value is a stream or large object, which
+     * makes the result uncacheable.
+     */
+    private final Map<Integer, Object[]> parameterValues;
+    /**
+     * The values of the parameters of each {@link #addBatch()} since the last execution or clear, to record the
+     * workload, or null if the values of the parameters are not remembered
+     */
+    private final List<Object[]> batchValues;
+
+    public PreparedStatementWrapper(BaseConnectionWrapper connection,
+            StatementFactory<? extends PreparedStatement> factory, String sql) throws SQLException {
+        super(connection, factory);
+        this.sql = sql;
+        boolean remember = connection.resultCache() != null || connection.workloadRecorder() != null;
+        this.parameterValues = remember ? new TreeMap<Integer, Object[]>() : null;
+        this.batchValues = remember ? new ArrayList<Object[]>() : null;
+    }
+
+    /**
+     * Remember the value of a parameter, for the key of the result in the result cache.
+     */
+    private void keyParameter(int parameterIndex, Object... value) {
+        if (parameterValues != null) {
+            parameterValues.put(parameterIndex, value);
+        }
+    }
+
+    /**
+     * Remember that a parameter is a stream or a large object, of which the result cannot be cached.
+     */
+    private void unkeyedParameter(int parameterIndex) {
+        if (parameterValues != null) {
+            parameterValues.put(parameterIndex, null);
+        }
+    }
+
+    private ResultCache.Key resultKey() throws SQLException {
+        if (parameterValues == null || parameterValues.containsValue(null)) {
+            return null;
+        }
+        List<Object> key = new ArrayList<Object>();
+        for (Map.Entry<Integer, Object[]> parameter : parameterValues.entrySet()) {
+            key.add(parameter.getKey());
+            key.add(parameter.getValue());
+        }
+        return resultKey(sql, key.toArray());
+    }
+
+    /**
+     * Records the values of the parameters with the SQL, once for every batched execution if a batch was executed.
+     */
+    @Override
+    void record(WorkloadRecorder recorder, String sql, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        if (batchValues == null || batchValues.isEmpty()) {
+            recorder.record(connection.getConnectionNumber(), sql,
+                    parameterValues == null ? new Object[0] : WorkloadRecorder.parameters(parameterValues), startNanos,
+                    nanos);
+            return;
+        }
+        for (Object[] values : batchValues) {
+            recorder.record(connection.getConnectionNumber(), sql, values, startNanos, nanos / batchValues.size());
+        }
+    }
+
+    /**
+     * Record a parameter that is set by name, to set it again after preparing again.
+     */
+    void namedParameter(String parameterName, Setting<PreparedStatement> parameter) {
+        if (recording) {
+            parameters.put(parameterName, parameter);
+        }
+    }
+
+    /**
+     * @return the SQL this statement was prepared with
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    protected PreparedStatement currentPrepared() throws SQLException {
+        return (PreparedStatement) current();
+    }
+
+    @Override
+    protected void replay(Statement newStatement) throws SQLException {
+        super.replay(newStatement);
+        PreparedStatement preparedStatement = (PreparedStatement) newStatement;
+        for (Map<Object, Setting<PreparedStatement>> batched : batchParameters) {
+            for (Setting<PreparedStatement> parameter : batched.values()) {
+                parameter.apply(preparedStatement);
+            }
+            preparedStatement.addBatch();
+        }
+        for (Setting<PreparedStatement> parameter : parameters.values()) {
+            parameter.apply(preparedStatement);
+        }
+    }
+
+    @Override
+    protected void forget() {
+        super.forget();
+        parameters.clear();
+        batchParameters.clear();
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        currentPrepared().addBatch();
+        if (recording) {
+            batchParameters.add(new HashMap<Object, Setting<PreparedStatement>>(parameters));
+        }
+        if (batchValues != null) {
+            batchValues.add(WorkloadRecorder.parameters(parameterValues));
+        }
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        super.clearBatch();
+        batchParameters.clear();
+        if (batchValues != null) {
+            batchValues.clear();
+        }
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        currentPrepared().clearParameters();
+        parameters.clear();
+        if (parameterValues != null) {
+            parameterValues.clear();
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return currentPrepared().executeBatch();
+        } finally {
+            batchParameters.clear();
+            executed(sql, start);
+            if (batchValues != null) {
+                batchValues.clear();
+            }
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        ResultCache.Key key = resultKey();
+        ResultSet cached = key == null ? null : connection.resultCache().get(key);
+        if (cached != null) {
+            answeredFromCache = true;
+            return cached;
+        }
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            ResultSet result = currentPrepared().executeQuery();
+            return timed(key == null ? result : connection.resultCache().put(key, result), sql);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return currentPrepared().executeUpdate();
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return currentPrepared().execute();
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return currentPrepared().getMetaData();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return currentPrepared().getParameterMetaData();
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        currentPrepared().setNull(parameterIndex, sqlType);
+        keyParameter(parameterIndex, null, sqlType);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNull(parameterIndex, sqlType));
+        }
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        currentPrepared().setNull(parameterIndex, sqlType, typeName);
+        keyParameter(parameterIndex, null, sqlType, typeName);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNull(parameterIndex, sqlType, typeName));
+        }
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        currentPrepared().setBoolean(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBoolean(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        currentPrepared().setByte(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setByte(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        currentPrepared().setShort(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setShort(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        currentPrepared().setInt(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setInt(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        currentPrepared().setLong(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setLong(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        currentPrepared().setFloat(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setFloat(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        currentPrepared().setDouble(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setDouble(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        currentPrepared().setBigDecimal(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBigDecimal(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        currentPrepared().setString(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setString(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String value) throws SQLException {
+        currentPrepared().setNString(parameterIndex, value);
+        keyParameter(parameterIndex, value);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNString(parameterIndex, value));
+        }
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        currentPrepared().setBytes(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBytes(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        currentPrepared().setDate(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setDate(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        currentPrepared().setDate(parameterIndex, x, cal);
+        keyParameter(parameterIndex, x, cal);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setDate(parameterIndex, x, cal));
+        }
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        currentPrepared().setTime(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setTime(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        currentPrepared().setTime(parameterIndex, x, cal);
+        keyParameter(parameterIndex, x, cal);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setTime(parameterIndex, x, cal));
+        }
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        currentPrepared().setTimestamp(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setTimestamp(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        currentPrepared().setTimestamp(parameterIndex, x, cal);
+        keyParameter(parameterIndex, x, cal);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setTimestamp(parameterIndex, x, cal));
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        currentPrepared().setAsciiStream(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setAsciiStream(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        currentPrepared().setAsciiStream(parameterIndex, x, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setAsciiStream(parameterIndex, x, length));
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        currentPrepared().setAsciiStream(parameterIndex, x, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setAsciiStream(parameterIndex, x, length));
+        }
+    }
+
+    @Override
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        currentPrepared().setUnicodeStream(parameterIndex, x, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setUnicodeStream(parameterIndex, x, length));
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        currentPrepared().setBinaryStream(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBinaryStream(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        currentPrepared().setBinaryStream(parameterIndex, x, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBinaryStream(parameterIndex, x, length));
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        currentPrepared().setBinaryStream(parameterIndex, x, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBinaryStream(parameterIndex, x, length));
+        }
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        currentPrepared().setCharacterStream(parameterIndex, reader);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setCharacterStream(parameterIndex, reader));
+        }
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+        currentPrepared().setCharacterStream(parameterIndex, reader, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setCharacterStream(parameterIndex, reader, length));
+        }
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+        currentPrepared().setCharacterStream(parameterIndex, reader, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setCharacterStream(parameterIndex, reader, length));
+        }
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+        currentPrepared().setNCharacterStream(parameterIndex, value);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNCharacterStream(parameterIndex, value));
+        }
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+        currentPrepared().setNCharacterStream(parameterIndex, value, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNCharacterStream(parameterIndex, value, length));
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        currentPrepared().setObject(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setObject(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        currentPrepared().setObject(parameterIndex, x, targetSqlType);
+        keyParameter(parameterIndex, x, targetSqlType);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setObject(parameterIndex, x, targetSqlType));
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+        currentPrepared().setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+        keyParameter(parameterIndex, x, targetSqlType, scaleOrLength);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setObject(parameterIndex, x, targetSqlType, scaleOrLength));
+        }
+    }
+
+    @Override
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        currentPrepared().setRef(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setRef(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        currentPrepared().setBlob(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBlob(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+        currentPrepared().setBlob(parameterIndex, inputStream);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBlob(parameterIndex, inputStream));
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+        currentPrepared().setBlob(parameterIndex, inputStream, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setBlob(parameterIndex, inputStream, length));
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        currentPrepared().setClob(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setClob(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader) throws SQLException {
+        currentPrepared().setClob(parameterIndex, reader);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setClob(parameterIndex, reader));
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        currentPrepared().setClob(parameterIndex, reader, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setClob(parameterIndex, reader, length));
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, NClob value) throws SQLException {
+        currentPrepared().setNClob(parameterIndex, value);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNClob(parameterIndex, value));
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+        currentPrepared().setNClob(parameterIndex, reader);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNClob(parameterIndex, reader));
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        currentPrepared().setNClob(parameterIndex, reader, length);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setNClob(parameterIndex, reader, length));
+        }
+    }
+
+    @Override
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        currentPrepared().setArray(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setArray(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        currentPrepared().setURL(parameterIndex, x);
+        keyParameter(parameterIndex, x);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setURL(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        currentPrepared().setRowId(parameterIndex, x);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setRowId(parameterIndex, x));
+        }
+    }
+
+    @Override
+    public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+        currentPrepared().setSQLXML(parameterIndex, xmlObject);
+        unkeyedParameter(parameterIndex);
+        if (recording) {
+            parameters.put(parameterIndex, s -> s.setSQLXML(parameterIndex, xmlObject));
+        }
+    }
+}
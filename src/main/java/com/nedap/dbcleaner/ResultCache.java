@@ -0,0 +1,348 @@
+package com.nedap.dbcleaner;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * A cache of the results of queries on one shared underlying connection, while it is in the forced transaction. All
+ * connections of the session are routed through that connection then, so it sees the writes of their statements: a
+ * write to a table removes the results of the queries that read from it, and a statement of which the written table is
+ * not recognized empties the whole cache. Rolling back or committing the forced transaction empties it as well.
+ *
+ * Writes it does not see leave cached results stale until then: those of triggers, those through views, and those of
+ * functions called from a query. Do not cache the results of tables they write to.
+ *
+ * Only SELECT statements that read from recognized tables, and that do not lock, write, or call functions such as
+ * NOW() or NEXTVAL() whose result changes without a write, are cached. The results are held in memory, as
+ * {@link CachedRowSet}s. When the estimated size of all results exceeds the maximum, the least recently used are
+ * removed.
+ */
+public class ResultCache {
+
+    private static final Pattern QUERY = Pattern.compile("^\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNCACHEABLE = Pattern.compile("\\b(?:NEXTVAL|CURRVAL|NEXT\\s+VALUE\\s+FOR|NOW|RAND"
+            + "|RANDOM|UUID|NEWID|SYSDATE|SYSTIMESTAMP|CURRENT_DATE|CURRENT_TIME|CURRENT_TIMESTAMP|LOCALTIME"
+            + "|LOCALTIMESTAMP|LAST_INSERT_ID|IDENTITY|SCOPE_IDENTITY|FOR\\s+UPDATE|FOR\\s+SHARE|LOCK\\s+IN|INTO)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern INTO = Pattern.compile("\\bINTO\\b", Pattern.CASE_INSENSITIVE);
+
+    private static volatile RowSetFactory rowSetFactory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Entry> results = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+    private volatile long maxBytes = 0;
+    /**
+     * Whether the shared underlying connection is in the forced transaction, so it sees the writes of all connections
+     */
+    private volatile boolean active = false;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes the estimated number of bytes the cached results may take, 0 disables the cache
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        lock.lock();
+        try {
+            trim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return whether results are cached right now, because the cache is enabled and the shared underlying connection
+     * is in the forced transaction
+     */
+    public boolean isActive() {
+        return active && isEnabled();
+    }
+
+    /**
+     * Start or stop caching results, when the forced transaction starts or ends. Stopping removes all cached results.
+     */
+    void setActive(boolean active) {
+        this.active = active;
+        if (!active) {
+            clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return results.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes the cached results take
+     */
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param sql the SQL of a query
+     * @param parameters the values of its parameters, or an empty array
+     * @return the key to cache the result of the query with, or null if it is not cached
+     */
+    static Key key(String sql, Object[] parameters) {
+        if (!QUERY.matcher(sql).find() || UNCACHEABLE.matcher(sql).find()) {
+            return null;
+        }
+        Set<String> tables = SqlTables.readTables(sql);
+        return tables.isEmpty() ? null : new Key(sql, parameters, tables);
+    }
+
+    /**
+     * @param key the key of a query
+     * @return the cached result of the query, with a cursor of its own, or null if it is not cached
+     */
+    ResultSet get(Key key) throws SQLException {
+        if (!isActive()) {
+            return null;
+        }
+        Entry entry;
+        lock.lock();
+        try {
+            entry = results.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copyOf(entry.rows);
+    }
+
+    /**
+     * Read the result of a query into the cache.
+     *
+     * @param key the key of the query
+     * @param result its result, which is read and closed
+     * @return the result, as it is read
+     * @throws SQLException if the result could not be read
+     */
+    ResultSet put(Key key, ResultSet result) throws SQLException {
+        CachedRowSet rows = rowSetFactory().createCachedRowSet();
+        try {
+            rows.populate(result);
+        } finally {
+            result.close();
+        }
+        Entry entry = new Entry(rows, key.tables, estimateBytes(rows));
+        lock.lock();
+        try {
+            if (isActive() && entry.bytes <= maxBytes) {
+                Entry previous = results.put(key, entry);
+                if (previous != null) {
+                    bytes -= previous.bytes;
+                }
+                bytes += entry.bytes;
+                trim();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return copyOf(rows);
+    }
+
+    /**
+     * @return a copy of cached rows, which the application may move through, change and close without affecting the
+     * cached rows. A row set that merely shares them would empty them when it is closed.
+     */
+    private static CachedRowSet copyOf(CachedRowSet rows) throws SQLException {
+        CachedRowSet copy = rowSetFactory().createCachedRowSet();
+        copy.populate(rows.createShared());
+        return copy;
+    }
+
+    private static RowSetFactory rowSetFactory() throws SQLException {
+        if (rowSetFactory == null) {
+            rowSetFactory = RowSetProvider.newFactory();
+        }
+        return rowSetFactory;
+    }
+
+    /**
+     * Remove the results that the given SQL may change, right before it is executed.
+     */
+    void beforeExecute(String sql) {
+        if (!isEnabled() || sql == null || (QUERY.matcher(sql).find() && !INTO.matcher(sql).find())) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (results.isEmpty()) {
+                return;
+            }
+            String table = SqlTables.writtenTable(sql);
+            if (table == null) {
+                //DDL, procedure calls and writes of an unrecognized form may change anything
+                clear();
+                return;
+            }
+            String written = SqlTables.unqualified(table);
+            for (Iterator<Entry> entries = results.values().iterator(); entries.hasNext();) {
+                Entry entry = entries.next();
+                if (entry.tables.contains(written)) {
+                    entries.remove();
+                    bytes -= entry.bytes;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all cached results, for example because the forced transaction was rolled back.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            results.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the least recently used results above the maximum size.
+     */
+    private void trim() {
+        Iterator<Entry> entries = results.values().iterator();
+        while (bytes > maxBytes && entries.hasNext()) {
+            bytes -= entries.next().bytes;
+            entries.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long estimateBytes(CachedRowSet rows) throws SQLException {
+        int columns = rows.getMetaData().getColumnCount();
+        long estimate = 512 + 128L * columns;
+        rows.beforeFirst();
+        while (rows.next()) {
+            estimate += 48 + 8L * columns;
+            for (int i = 1; i <= columns; i++) {
+                estimate += estimateBytes(rows.getObject(i));
+            }
+        }
+        rows.beforeFirst();
+        return estimate;
+    }
+
+    private static long estimateBytes(Object value) throws SQLException {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 48 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof Clob) {
+            return 48 + 2 * ((Clob) value).length();
+        } else if (value instanceof Blob) {
+            return 48 + ((Blob) value).length();
+        } else if (value instanceof BigDecimal) {
+            return 64;
+        }
+        return 24;
+    }
+
+    /**
+     * The SQL of a query and the values of its parameters
+     */
+    static class Key {
+
+        private final String sql;
+        private final Object[] parameters;
+        /**
+         * The unqualified names of the tables the query reads from
+         */
+        private final Set<String> tables;
+
+        Key(String sql, Object[] parameters, Set<String> tables) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.tables = tables;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return sql.equals(key.sql) && Arrays.deepEquals(parameters, key.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * sql.hashCode() + Arrays.deepHashCode(parameters);
+        }
+    }
+
+    private static class Entry {
+
+        final CachedRowSet rows;
+        final Set<String> tables;
+        final long bytes;
+
+        Entry(CachedRowSet rows, Set<String> tables, long bytes) {
+            this.rows = rows;
+            this.tables = tables;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.nedap.dbcleaner;
+
+import java.sql.SQLException;
+
+/**
+ * Rolling back the forced transaction did not restore a table, because a write to it was committed, for example by a
+ * statement that commits implicitly. The database must be rebuilt before it is used again. Thrown when rollbacks are
+ * verified with the dbcleaner.verifyrollback property.
+ */
+public class RollbackLeakException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String table;
+    private final String statement;
+
+    public RollbackLeakException(String table, String statement, String message) {
+        super(message);
+        this.table = table;
+        this.statement = statement;
+    }
+
+    /**
+     * @return the table that was not restored, as it is named in the SQL that wrote to it
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the SQL that first wrote to the table in the forced transaction
+     */
+    public String getStatement() {
+        return statement;
+    }
+}
@@ -0,0 +1,190 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that rolling back the forced transaction restored the tables written in it. Some statements commit
+ * implicitly, such as DDL on MySQL, after which a rollback only undoes part of the writes without failing.
+ *
+ * The first time a table is written in the forced transaction, its rows are counted, or a checksum of all its rows is
+ * calculated, right before the write. After the rollback this is done again, and a difference is reported as a
+ * {@link RollbackLeakException}. Tables that are never written are not read. Writes that the wrappers do not see,
+ * such as those of triggers and procedures, are not checked.
+ */
+class RollbackVerifier {
+
+    private static final Pattern QUERY = Pattern.compile("^\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    /**
+     * The number of statements kept that may have committed implicitly
+     */
+    private static final int MAX_SUSPECTS = 10;
+
+    private final boolean checksums;
+    /**
+     * The tables written in the forced transaction, by normalized name
+     */
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+    /**
+     * Statements executed in the forced transaction that are not recognized as reads or as writes of a table, such as
+     * DDL
+     */
+    private final List<String> suspects = new ArrayList<String>();
+
+    /**
+     * @param checksums whether to compare checksums of all rows, instead of the number of rows
+     */
+    RollbackVerifier(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Called while forced, right before the given SQL is executed on the given connection.
+     */
+    void beforeExecute(Connection connection, String sql) {
+        String table = SqlTables.writtenTable(sql);
+        if (table == null) {
+            if (!QUERY.matcher(sql).find() && suspects.size() < MAX_SUSPECTS) {
+                suspects.add(sql);
+            }
+            return;
+        }
+        String key = SqlTables.normalize(table);
+        if (tables.containsKey(key)) {
+            return;
+        }
+        Long fingerprint = null;
+        try {
+            if (exists(connection, table)) {
+                fingerprint = fingerprint(connection, table);
+            }
+        } catch (SQLException ex) {
+            //the table cannot be read, for example because it is not created yet, so it is not verified
+        }
+        tables.put(key, new Table(table, sql, fingerprint));
+    }
+
+    /**
+     * Compare the written tables with how they were before they were first written, after the forced transaction was
+     * rolled back, and forget them.
+     *
+     * @throws RollbackLeakException for the first table that differs, with the other differences chained to it
+     */
+    void verify(Connection connection) throws SQLException {
+        RollbackLeakException first = null;
+        try {
+            for (Table table : tables.values()) {
+                if (table.before == null) {
+                    continue;
+                }
+                long after = fingerprint(connection, table.name);
+                if (after != table.before) {
+                    RollbackLeakException leak = new RollbackLeakException(table.name, table.firstWrite,
+                            describe(table, after));
+                    if (first == null) {
+                        first = leak;
+                    } else {
+                        first.setNextException(leak);
+                    }
+                }
+            }
+        } finally {
+            clear();
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    void clear() {
+        tables.clear();
+        suspects.clear();
+    }
+
+    private String describe(Table table, long after) {
+        StringBuilder message = new StringBuilder("rolling back did not restore table ").append(table.name);
+        if (checksums) {
+            message.append(": its checksum changed from ").append(table.before).append(" to ").append(after);
+        } else {
+            message.append(": it had ").append(table.before).append(" rows when first written, and ").append(after)
+                    .append(" after rolling back");
+        }
+        message.append(". First written by: ").append(table.firstWrite);
+        if (!suspects.isEmpty()) {
+            message.append(". Statements that may have committed implicitly: ").append(String.join("; ", suspects));
+        }
+        return message.toString();
+    }
+
+    /**
+     * @return the number of rows, or a checksum of all rows that does not depend on their order
+     */
+    private long fingerprint(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (!checksums) {
+                try (ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                    result.next();
+                    return result.getLong(1);
+                }
+            }
+            long checksum = 0;
+            try (ResultSet result = statement.executeQuery("SELECT * FROM " + table)) {
+                int columns = result.getMetaData().getColumnCount();
+                Object[] row = new Object[columns];
+                while (result.next()) {
+                    for (int i = 0; i < columns; i++) {
+                        Object value = result.getObject(i + 1);
+                        row[i] = value instanceof byte[] ? Arrays.hashCode((byte[]) value) : String.valueOf(value);
+                    }
+                    checksum += Arrays.hashCode(row) * 0x9E3779B97F4A7C15L;
+                }
+            }
+            return checksum;
+        }
+    }
+
+    /**
+     * Looks the table up in the metadata, because a failing query would abort the transaction on some databases.
+     */
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        String name = SqlTables.unquote(table);
+        name = name.substring(name.lastIndexOf('.') + 1);
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String candidate : new String[]{name, name.toUpperCase(), name.toLowerCase()}) {
+            try (ResultSet result = metaData.getTables(null, null, candidate, null)) {
+                if (result.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Table {
+
+        /**
+         * The name as written in the first write
+         */
+        final String name;
+        final String firstWrite;
+        /**
+         * The number of rows or checksum before the first write, or null if the table could not be read
+         */
+        final Long before;
+
+        Table(String name, String firstWrite, Long before) {
+            this.name = name;
+            this.firstWrite = firstWrite;
+            this.before = before;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.nedap.dbcleaner;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the tables that SQL statements refer to. This is a simple pattern match on the start of the statement, not a
+ * parser, so it recognizes the common single table forms of INSERT, UPDATE, DELETE, MERGE and TRUNCATE only, and the
+ * tables named after FROM and JOIN in queries.
+ */
+final class SqlTables {
+
+    private static final String IDENTIFIER = "(?:\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]|[\\w$#]+)";
+    private static final String NAME = "(" + IDENTIFIER + "(?:\\s*\\.\\s*" + IDENTIFIER + ")*)";
+    private static final Pattern[] WRITES = {
+        Pattern.compile("^(?:INSERT|REPLACE)\\s+(?:(?:LOW_PRIORITY|DELAYED|HIGH_PRIORITY|IGNORE)\\s+)*(?:INTO\\s+)?" + NAME,
+        Pattern.CASE_INSENSITIVE),
+        Pattern.compile("^UPDATE\\s+(?:(?:LOW_PRIORITY|IGNORE|ONLY)\\s+)*" + NAME, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("^DELETE\\s+(?:(?:LOW_PRIORITY|QUICK|IGNORE)\\s+)*FROM\\s+(?:ONLY\\s+)?" + NAME,
+        Pattern.CASE_INSENSITIVE),
+        Pattern.compile("^MERGE\\s+INTO\\s+" + NAME, Pattern.CASE_INSENSITIVE),
+        Pattern.compile("^TRUNCATE\\s+(?:TABLE\\s+)?" + NAME, Pattern.CASE_INSENSITIVE)
+    };
+    /**
+     * The tables after FROM, separated by commas and with optional aliases, or the table after JOIN
+     */
+    private static final Pattern READS = Pattern.compile("\\b(?:FROM|JOIN)\\s+(" + NAME + "(?:\\s+(?:AS\\s+)?" + IDENTIFIER
+            + ")?(?:\\s*,\\s*" + NAME + "(?:\\s+(?:AS\\s+)?" + IDENTIFIER + ")?)*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LEADING_NAME = Pattern.compile("^\\s*" + NAME);
+    private static final Pattern LEADING_COMMENTS = Pattern.compile("^(?:\\s+|--[^\\n]*(?:\\n|$)|/\\*.*?\\*/)+",
+            Pattern.DOTALL);
+
+    private SqlTables() {
+    }
+
+    /**
+     * @param sql a SQL statement
+     * @return the table the statement writes to as it is written in the SQL, or null if it does not write to a table
+     * or its form is not recognized
+     */
+    static String writtenTable(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        String statement = LEADING_COMMENTS.matcher(sql).replaceFirst("");
+        for (Pattern pattern : WRITES) {
+            Matcher matcher = pattern.matcher(statement);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param sql a query
+     * @return the unqualified names of the tables the query reads from, see {@link #unqualified(String)}. May contain
+     * names that are not tables, but misses only tables that are not named after FROM or JOIN, for example in
+     * functions or views.
+     */
+    static Set<String> readTables(String sql) {
+        Set<String> tables = new LinkedHashSet<String>();
+        Matcher reads = READS.matcher(sql);
+        while (reads.find()) {
+            for (String listed : reads.group(1).split(",")) {
+                Matcher name = LEADING_NAME.matcher(listed);
+                if (name.find()) {
+                    tables.add(unqualified(name.group(1)));
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @param table a table name as written in SQL
+     * @return the last part of the normalized name, to compare names that are qualified differently
+     */
+    static String unqualified(String table) {
+        String normalized = normalize(table);
+        return normalized.substring(normalized.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @param table a table name as written in SQL
+     * @return the table name without quotes or whitespace and in upper case, to compare names written differently
+     */
+    static String normalize(String table) {
+        return unquote(table).toUpperCase();
+    }
+
+    /**
+     * @param table a table name as written in SQL
+     * @return the table name without quotes or whitespace
+     */
+    static String unquote(String table) {
+        return table.replaceAll("[\"`\\[\\]\\s]", "");
+    }
+
+    /**
+     * @param table a table name as written in SQL
+     * @return whether the last part of the name is quoted, so its case is significant
+     */
+    static boolean isQuoted(String table) {
+        String trimmed = table.trim();
+        return trimmed.endsWith("\"") || trimmed.endsWith("`") || trimmed.endsWith("]");
+    }
+}
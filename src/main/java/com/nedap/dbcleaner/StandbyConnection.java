@@ -0,0 +1,128 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A spare underlying connection for a {@link TransactionWrappedConnection}, for pipelined rollbacks. Instead of
+ * rolling back in place, the transaction wrapped connection swaps its underlying connection for the spare one, and the
+ * connection it used is rolled back on a background thread to become the next spare. The next test can start while the
+ * database is still rolling back.
+ */
+class StandbyConnection {
+
+    /**
+     * Opens a new underlying connection
+     */
+    interface Opener {
+
+        Connection open() throws SQLException;
+    }
+
+    private static final Logger logger = Logger.getLogger(StandbyConnection.class.getName());
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dbcleaner standby");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Opener opener;
+    /**
+     * The next spare connection, which may still be opening or rolling back
+     */
+    private Future<Connection> next;
+
+    StandbyConnection(Opener opener) {
+        this.opener = opener;
+        this.next = executor.submit(this::open);
+    }
+
+    /**
+     * Take the spare connection, and roll back the given connection in the background to become the next spare. If
+     * there is no usable spare connection, the given connection is rolled back right away and returned.
+     *
+     * @param used the underlying connection with the transaction to roll back
+     * @return the underlying connection to use from now on, which has no open transaction
+     * @throws SQLException if there was no spare connection and rolling back the given one failed
+     */
+    Connection swap(Connection used) throws SQLException {
+        Connection spare = take();
+        if (spare == null) {
+            used.rollback();
+            next = executor.submit(this::open);
+            return used;
+        }
+        next = executor.submit(() -> recycle(used));
+        return spare;
+    }
+
+    /**
+     * Close the spare connection, once it is done opening or rolling back.
+     */
+    void close() {
+        Connection spare = take();
+        if (spare != null) {
+            try {
+                spare.close();
+            } catch (SQLException ex) {
+                //closing is all we could do
+            }
+        }
+        next = null;
+    }
+
+    /**
+     * @return the spare connection, waiting until it is ready, or null if it could not be prepared
+     */
+    private Connection take() {
+        if (next == null) {
+            return null;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return next.get();
+                } catch (InterruptedException ex) {
+                    //the background rollback must finish before its connection can be used or closed
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    logger.log(Level.WARNING, "could not prepare a standby connection", ex.getCause());
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = opener.open();
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private Connection recycle(Connection used) throws SQLException {
+        try {
+            used.rollback();
+            return used;
+        } catch (SQLException ex) {
+            logger.log(Level.WARNING, "could not roll back a connection in the background, replacing it", ex);
+            try {
+                used.close();
+            } catch (SQLException closeFailure) {
+                //it is replaced anyway
+            }
+            return open();
+        }
+    }
+}
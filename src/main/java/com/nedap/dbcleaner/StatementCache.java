@@ -0,0 +1,220 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, least recently used cache of idle prepared statements on one underlying connection. A statement is taken
+ * out of the cache while it is in use, so two threads never share a statement, and put back when it is closed. When
+ * the cache is full, the least recently used statement is closed.
+ */
+public class StatementCache {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, PreparedStatement> idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true);
+    /**
+     * The underlying connection the cached statements belong to
+     */
+    private Connection owner;
+    private volatile int maxSize = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of idle statements to keep, 0 disables the cache
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        closeAll(trim());
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of idle statements in the cache
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take an idle statement out of the cache, or prepare a new one if there is none.
+     *
+     * @param key the SQL and arguments the statement is prepared with
+     * @param connection the underlying connection to prepare the statement on
+     * @param factory prepares a new statement
+     * @return a statement that is not in use
+     * @throws SQLException if a new statement could not be prepared
+     */
+    PreparedStatement checkout(Key key, Connection connection,
+            StatementWrapper.StatementFactory<? extends PreparedStatement> factory) throws SQLException {
+        PreparedStatement statement;
+        List<PreparedStatement> stale = null;
+        lock.lock();
+        try {
+            if (owner != connection) {
+                stale = new ArrayList<PreparedStatement>(idle.values());
+                idle.clear();
+                owner = connection;
+            }
+            statement = idle.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        closeAll(stale);
+        if (statement != null) {
+            hits.incrementAndGet();
+            return statement;
+        }
+        misses.incrementAndGet();
+        return factory.create(connection);
+    }
+
+    /**
+     * Put a statement that is no longer in use back into the cache, or close it if it cannot be reused.
+     *
+     * @param key the SQL and arguments the statement was prepared with
+     * @param connection the underlying connection the statement was prepared on
+     * @param statement the statement
+     * @param reusable false if the statement's settings were changed, so it must not be handed out again
+     * @throws SQLException if the statement could not be closed
+     */
+    void checkin(Key key, Connection connection, PreparedStatement statement, boolean reusable) throws SQLException {
+        if (reusable && isEnabled()) {
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+            } catch (SQLException ex) {
+                reusable = false;
+            }
+        }
+        List<PreparedStatement> evicted = null;
+        boolean cached = false;
+        if (reusable && isEnabled()) {
+            lock.lock();
+            try {
+                if (owner == connection && !idle.containsKey(key)) {
+                    idle.put(key, statement);
+                    cached = true;
+                    evicted = trim();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!cached) {
+            statement.close();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Close all idle statements, for example because the underlying connection is closed.
+     */
+    public void clear() {
+        List<PreparedStatement> statements;
+        lock.lock();
+        try {
+            statements = new ArrayList<PreparedStatement>(idle.values());
+            idle.clear();
+        } finally {
+            lock.unlock();
+        }
+        closeAll(statements);
+    }
+
+    /**
+     * Remove the least recently used statements above the maximum size.
+     *
+     * @return the removed statements, to be closed after releasing the lock
+     */
+    private List<PreparedStatement> trim() {
+        List<PreparedStatement> evicted = new ArrayList<PreparedStatement>();
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Key, PreparedStatement>> entries = idle.entrySet().iterator();
+            while (idle.size() > maxSize && entries.hasNext()) {
+                evicted.add(entries.next().getValue());
+                entries.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return evicted;
+    }
+
+    private static void closeAll(List<PreparedStatement> statements) {
+        if (statements != null) {
+            for (PreparedStatement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException ex) {
+                    //the statement is of no use anymore, nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * The SQL and result set arguments a statement was prepared with. Arguments that were not given are -1.
+     */
+    static class Key {
+
+        private final String sql;
+        private final int[] arguments;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.arguments = new int[]{resultSetType, resultSetConcurrency, resultSetHoldability, autoGeneratedKeys};
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Key) {
+                Key o = (Key) other;
+                return sql.equals(o.sql) && Arrays.equals(arguments, o.arguments);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return sql.hashCode() * 31 + Arrays.hashCode(arguments);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.nedap.dbcleaner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Execution and fetch times of the statements on one shared underlying connection, added up per normalized SQL:
+ * literals are replaced by ?, so statements that only differ in their values count as one. Statements slower than a
+ * threshold are logged. Off by default.
+ */
+public class StatementStatistics {
+
+    private static final Logger logger = Logger.getLogger(StatementStatistics.class.getName());
+
+    /**
+     * Beyond this many different statements, new ones are added up under {@link #OTHER_STATEMENTS}
+     */
+    private static final int MAX_STATEMENTS = 10000;
+    static final String OTHER_STATEMENTS = "(other statements)";
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * Entries by the SQL as executed, so SQL that is executed again is not normalized again
+     */
+    private final ConcurrentMap<String, Entry> entriesBySql = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean enabled = false;
+    private volatile long slowThresholdMillis = 0;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getSlowThresholdMillis() {
+        return slowThresholdMillis;
+    }
+
+    /**
+     * @param slowThresholdMillis statements that take longer are logged as a warning, 0 logs nothing
+     */
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    /**
+     * @return the statistics per normalized SQL, the ones that took the most time in total first
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<Entry>(entries.values());
+        Collections.sort(result, Comparator.comparingLong(Entry::getTotalNanos).reversed());
+        return result;
+    }
+
+    public void clear() {
+        entries.clear();
+        entriesBySql.clear();
+    }
+
+    /**
+     * @param sql SQL as executed
+     * @return the statistics the SQL adds up to
+     */
+    Entry entry(String sql) {
+        Entry entry = entriesBySql.get(sql);
+        if (entry == null) {
+            String normalized = normalize(sql);
+            if (entries.size() >= MAX_STATEMENTS && !entries.containsKey(normalized)) {
+                normalized = OTHER_STATEMENTS;
+            }
+            entry = entries.computeIfAbsent(normalized, Entry::new);
+            if (entriesBySql.size() < MAX_STATEMENTS) {
+                entriesBySql.put(sql, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Add up an execution of the given SQL that started at the given time, and log it if it was slow.
+     *
+     * @return the statistics the SQL adds up to
+     */
+    Entry executed(String sql, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Entry entry = entry(sql);
+        entry.executions.increment();
+        entry.executeNanos.add(nanos);
+        entry.maxExecuteNanos.accumulate(nanos);
+        logIfSlow("executing", sql, nanos);
+        return entry;
+    }
+
+    /**
+     * Add up the executions of a batch of SQL statements that started at the given time, each taking an equal share of
+     * the time of the batch, and log the batch if it was slow.
+     */
+    void executedBatch(List<String> batch, long startNanos) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long share = nanos / batch.size();
+        for (String sql : batch) {
+            Entry entry = entry(sql);
+            entry.executions.increment();
+            entry.executeNanos.add(share);
+            entry.maxExecuteNanos.accumulate(share);
+        }
+        logIfSlow("executing a batch of " + batch.size() + " statements", batch.get(0), nanos);
+    }
+
+    /**
+     * Add up fetching the given number of rows from a result set of the given SQL, and log it if it was slow.
+     */
+    void fetched(Entry entry, String sql, long nanos, long rows) {
+        entry.fetchNanos.add(nanos);
+        entry.rows.add(rows);
+        logIfSlow("fetching " + rows + " rows of", sql, nanos);
+    }
+
+    private void logIfSlow(String what, String sql, long nanos) {
+        long threshold = slowThresholdMillis;
+        if (threshold > 0 && nanos > TimeUnit.MILLISECONDS.toNanos(threshold)) {
+            logger.warning("Slow statement, " + what + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms: " + sql);
+        }
+    }
+
+    /**
+     * @return the SQL with literals replaced by ?, IN lists collapsed to one ? and whitespace collapsed
+     */
+    public static String normalize(String sql) {
+        String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+        normalized = NUMBER_LITERAL.matcher(normalized).replaceAll("?");
+        normalized = IN_LIST.matcher(normalized).replaceAll("IN (?)");
+        normalized = WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+        if (normalized.endsWith(";")) {
+            normalized = normalized.substring(0, normalized.length() - 1).trim();
+        }
+        return normalized;
+    }
+
+    /**
+     * The statistics of one normalized SQL statement
+     */
+    public static class Entry {
+
+        private final String sql;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder executeNanos = new LongAdder();
+        private final LongAccumulator maxExecuteNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder fetchNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+
+        Entry(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        public long getExecuteNanos() {
+            return executeNanos.sum();
+        }
+
+        public long getMaxExecuteNanos() {
+            return maxExecuteNanos.get();
+        }
+
+        /**
+         * @return the time spent moving through the result sets, for result sets that were closed
+         */
+        public long getFetchNanos() {
+            return fetchNanos.sum();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getTotalNanos() {
+            return getExecuteNanos() + getFetchNanos();
+        }
+
+        @Override
+        public String toString() {
+            return getExecutions() + " x " + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + " ms: " + sql;
+        }
+    }
+}
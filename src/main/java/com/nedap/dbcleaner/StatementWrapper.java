@@ -0,0 +1,534 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a JDBC Statement, so the connection wrapper that created it can see the SQL it executes.
+ *
+ * When the connection wrapper switches to another underlying connection, for example when a
+ * {@link SwitchingConnectionWrapper} starts routing through the forced transaction, the statement is created again on
+ * the new underlying connection the next time it is used. To make that possible, the settings of the statement are
+ * recorded for as long as its connection wrapper may still switch.
+ */
+public class StatementWrapper implements Statement {
+
+    /**
+     * Creates a statement on an underlying connection
+     */
+    public interface StatementFactory<T extends Statement> {
+
+        T create(Connection connection) throws SQLException;
+    }
+
+    /**
+     * A setting or parameter of a statement, recorded so it can be applied to a new statement
+     */
+    public interface Setting<T extends Statement> {
+
+        void apply(T statement) throws SQLException;
+    }
+
+    protected final BaseConnectionWrapper connection;
+    private final StatementFactory<? extends Statement> factory;
+    private Statement statement;
+    /**
+     * The underlying connection the current statement was created on
+     */
+    private Connection createdOn;
+    private boolean closed = false;
+    /**
+     * Whether settings are recorded, which is only needed while the connection wrapper may still switch
+     */
+    protected boolean recording;
+    private final Map<String, Setting<Statement>> settings = new LinkedHashMap<String, Setting<Statement>>();
+    /**
+     * The SQL added with {@link #addBatch(String)} since the last execution or clear
+     */
+    private final List<String> batch = new ArrayList<String>();
+    /**
+     * Whether the last execution was answered from the result cache, without reaching the database
+     */
+    protected boolean answeredFromCache = false;
+
+    /**
+     * Create a statement on the current underlying connection of the given connection wrapper.
+     *
+     * @param connection the connection wrapper
+     * @param factory creates the statement, now and after the connection wrapper switched
+     * @throws SQLException if the statement could not be created
+     */
+    public StatementWrapper(BaseConnectionWrapper connection, StatementFactory<? extends Statement> factory)
+            throws SQLException {
+        this.connection = connection;
+        this.factory = factory;
+        this.createdOn = connection.realConnection;
+        this.statement = factory.create(createdOn);
+        this.recording = connection.mayReplaceRealConnection();
+    }
+
+    /**
+     * @return the underlying JDBC statement
+     */
+    public Statement getRealStatement() {
+        return statement;
+    }
+
+    /**
+     * @return the underlying statement, created again first if the connection wrapper has switched to another
+     * underlying connection
+     * @throws SQLException if the statement could not be created again
+     */
+    protected Statement current() throws SQLException {
+        if (createdOn != connection.realConnection && !closed) {
+            recreate();
+        }
+        return statement;
+    }
+
+    private void recreate() throws SQLException {
+        Connection target = connection.realConnection;
+        Statement previous = statement;
+        Connection createdOnBefore = createdOn;
+        statement = factory.create(target);
+        createdOn = target;
+        replay(statement);
+        recording = connection.mayReplaceRealConnection();
+        if (!recording) {
+            forget();
+        }
+        try {
+            closeRealStatement(previous, createdOnBefore);
+        } catch (SQLException ex) {
+            //the previous underlying connection is usually closed already
+        }
+    }
+
+    /**
+     * Close an underlying statement that is no longer used by this wrapper.
+     *
+     * @param realStatement the statement
+     * @param realConnection the underlying connection it was created on
+     */
+    protected void closeRealStatement(Statement realStatement, Connection realConnection) throws SQLException {
+        realStatement.close();
+    }
+
+    /**
+     * Apply the recorded settings to a newly created statement.
+     */
+    protected void replay(Statement newStatement) throws SQLException {
+        for (Setting<Statement> setting : settings.values()) {
+            setting.apply(newStatement);
+        }
+        for (String sql : batch) {
+            newStatement.addBatch(sql);
+        }
+    }
+
+    /**
+     * Stop recording, because the connection wrapper will not switch anymore.
+     */
+    protected void forget() {
+        settings.clear();
+    }
+
+    /**
+     * Called after executing the given SQL, whether it succeeded or not.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} right before the execution
+     */
+    protected void executed(String sql, long startNanos) {
+        answeredFromCache = false;
+        connection.afterExecute(sql);
+        StatementStatistics statistics = connection.statementStatistics();
+        if (statistics != null) {
+            statistics.executed(sql, startNanos);
+        }
+        WorkloadRecorder recorder = connection.workloadRecorder();
+        //a query the shared connection answered from its result cache never reached the database
+        if (recorder != null && !(statement instanceof StatementWrapper
+                && ((StatementWrapper) statement).answeredFromCache)) {
+            record(recorder, sql, startNanos);
+        }
+    }
+
+    /**
+     * Record the execution of the given SQL that just finished.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} right before the execution
+     */
+    void record(WorkloadRecorder recorder, String sql, long startNanos) {
+        recorder.record(connection.getConnectionNumber(), sql, null, startNanos, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the result set, timed while it is read if the connection wrapper keeps statement statistics
+     */
+    protected ResultSet timed(ResultSet resultSet, String sql) {
+        StatementStatistics statistics = connection.statementStatistics();
+        if (statistics == null || resultSet == null) {
+            return resultSet;
+        }
+        return new TimedResultSet(resultSet, this, statistics, statistics.entry(sql), sql);
+    }
+
+    /**
+     * @param sql the SQL of a query
+     * @param parameters the values of its parameters
+     * @return the key to look up the result of the query with in the result cache of the connection wrapper, or null if
+     * its result is not cached
+     */
+    protected ResultCache.Key resultKey(String sql, Object[] parameters) throws SQLException {
+        ResultCache cache = connection.resultCache();
+        if (cache == null || !cache.isActive() || current().getMaxRows() != 0) {
+            return null;
+        }
+        return ResultCache.key(sql, parameters);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            closeRealStatement(statement, createdOn);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || (createdOn == connection.realConnection && statement.isClosed());
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        current().addBatch(sql);
+        batch.add(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        current().clearBatch();
+        batch.clear();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        List<String> executing = new ArrayList<String>();
+        long start = 0;
+        try {
+            for (String sql : batch) {
+                connection.beforeExecute(sql);
+                executing.add(sql);
+            }
+            start = System.nanoTime();
+            return current().executeBatch();
+        } finally {
+            answeredFromCache = false;
+            batch.clear();
+            for (int i = executing.size() - 1; i >= 0; i--) {
+                connection.afterExecute(executing.get(i));
+            }
+            StatementStatistics statistics = connection.statementStatistics();
+            if (statistics != null && start != 0) {
+                statistics.executedBatch(executing, start);
+            }
+            WorkloadRecorder recorder = connection.workloadRecorder();
+            if (recorder != null && start != 0) {
+                for (String sql : executing) {
+                    record(recorder, sql, start);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().execute(sql);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().execute(sql, autoGeneratedKeys);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().execute(sql, columnIndexes);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().execute(sql, columnNames);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        ResultCache.Key key = resultKey(sql, new Object[0]);
+        ResultSet cached = key == null ? null : connection.resultCache().get(key);
+        if (cached != null) {
+            answeredFromCache = true;
+            return cached;
+        }
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            ResultSet result = current().executeQuery(sql);
+            return timed(key == null ? result : connection.resultCache().put(key, result), sql);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().executeUpdate(sql);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().executeUpdate(sql, autoGeneratedKeys);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().executeUpdate(sql, columnIndexes);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        connection.beforeExecute(sql);
+        long start = System.nanoTime();
+        try {
+            return current().executeUpdate(sql, columnNames);
+        } finally {
+            executed(sql, start);
+        }
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return current().getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        current().setMaxFieldSize(max);
+        if (recording) {
+            settings.put("setMaxFieldSize", s -> s.setMaxFieldSize(max));
+        }
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return current().getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        current().setMaxRows(max);
+        if (recording) {
+            settings.put("setMaxRows", s -> s.setMaxRows(max));
+        }
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        current().setEscapeProcessing(enable);
+        if (recording) {
+            settings.put("setEscapeProcessing", s -> s.setEscapeProcessing(enable));
+        }
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return current().getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        current().setQueryTimeout(seconds);
+        if (recording) {
+            settings.put("setQueryTimeout", s -> s.setQueryTimeout(seconds));
+        }
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        current().cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return current().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        current().clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        current().setCursorName(name);
+        if (recording) {
+            settings.put("setCursorName", s -> s.setCursorName(name));
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return current().getResultSet();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return current().getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return current().getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return current().getMoreResults(current);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        current().setFetchDirection(direction);
+        if (recording) {
+            settings.put("setFetchDirection", s -> s.setFetchDirection(direction));
+        }
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return current().getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        current().setFetchSize(rows);
+        if (recording) {
+            settings.put("setFetchSize", s -> s.setFetchSize(rows));
+        }
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return current().getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return current().getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return current().getResultSetType();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return current().getResultSetHoldability();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return current().getGeneratedKeys();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        current().setPoolable(poolable);
+        if (recording) {
+            settings.put("setPoolable", s -> s.setPoolable(poolable));
+        }
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return current().isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        current().closeOnCompletion();
+        if (recording) {
+            settings.put("closeOnCompletion", s -> s.closeOnCompletion());
+        }
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return current().isCloseOnCompletion();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface != null && iface.isInstance(this) ? iface.cast(this) : current().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return (iface != null && iface.isInstance(this)) || current().isWrapperFor(iface);
+    }
+}
@@ -14,14 +14,43 @@ import java.util.*;
 public class SwitchingConnectionWrapper extends BaseConnectionWrapper implements ForceableConnection {
 
     private volatile boolean inForcedTransaction = false;
-    private final Connection actualConnection;
+    private Connection actualConnection;
     private final Connection wrappedConnection;
-    private static final Map<Integer, SwitchingConnectionWrapper> openConnections = new HashMap<Integer, SwitchingConnectionWrapper>();
+    private static final ConnectionRegistry<SwitchingConnectionWrapper> openConnections = new ConnectionRegistry<SwitchingConnectionWrapper>();
+    /**
+     * The cleaning session this connection was opened in
+     */
+    private final CleaningSession session;
+    /**
+     * The auto-commit mode the application set, which is emulated while forced if the transaction wrapped connection
+     * emulates transactions
+     */
+    private boolean applicationAutoCommit = true;
+    /**
+     * Opens the actual database connection on first use, or null once it is opened or no longer needed
+     */
+    private StandbyConnection.Opener opener;
+    private boolean closed = false;
+    /**
+     * Settings made before the actual database connection was opened, applied when it is, or null if not made
+     */
+    private Boolean readOnly;
+    private Integer transactionIsolation;
 
     public static List<SwitchingConnectionWrapper> getOpenConnections() {
-        List<SwitchingConnectionWrapper> connections;
-        synchronized (openConnections) {
-            connections = new ArrayList(openConnections.values());
+        return openConnections.values();
+    }
+
+    /**
+     * @param session a cleaning session
+     * @return the open connections that were opened in the given session
+     */
+    public static List<SwitchingConnectionWrapper> getOpenConnections(CleaningSession session) {
+        List<SwitchingConnectionWrapper> connections = getOpenConnections();
+        for (Iterator<SwitchingConnectionWrapper> i = connections.iterator(); i.hasNext();) {
+            if (i.next().getSession() != session) {
+                i.remove();
+            }
         }
         return connections;
     }
@@ -30,11 +59,11 @@ public class SwitchingConnectionWrapper extends BaseConnectionWrapper implements
         super(connection == null ? wrappedConnection : connection);
         this.actualConnection = connection;
         this.wrappedConnection = wrappedConnection;
-        synchronized (openConnections) {
-            openConnections.put(getConnectionNumber(), this);
-        }
+        this.session = wrappedConnection instanceof TransactionWrappedConnection
+                ? ((TransactionWrappedConnection) wrappedConnection).getSession() : CleaningSession.current();
+        openConnections.register(this, connection);
 
-        inForcedTransaction = TransactionUtil.isInForcedTransaction();
+        inForcedTransaction = session.isInForcedTransaction();
 
         if (inForcedTransaction) {
             //get the underlying transaction and use that!
@@ -42,40 +71,338 @@ public class SwitchingConnectionWrapper extends BaseConnectionWrapper implements
         }
     }
 
+    /**
+     * Create a connection that opens its actual database connection on first use. If the forced transaction starts
+     * before that, the actual connection is never opened, and the transaction wrapped connection is used right away.
+     * Until then, the transaction wrapped connection only stands in for the actual connection, and is not used.
+     *
+     * @param opener opens the actual database connection
+     * @param wrappedConnection the transaction wrapped connection to use while forced
+     */
+    SwitchingConnectionWrapper(StandbyConnection.Opener opener, TransactionWrappedConnection wrappedConnection) {
+        this(null, wrappedConnection, null, null);
+        lock.lock();
+        try {
+            if (!inForcedTransaction) {
+                this.opener = opener;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the actual database connection first, if that was postponed and this connection is used for the first
+     * time.
+     */
+    @Override
+    protected void acquire() throws SQLException {
+        super.acquire();
+        if (opener != null) {
+            try {
+                open();
+            } catch (SQLException | RuntimeException ex) {
+                release();
+                throw ex;
+            }
+        }
+    }
+
+    private void open() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection is closed");
+        }
+        if (session.isInForcedTransaction()) {
+            //the forced transaction started in the meantime, there is no need for an actual connection anymore
+            switchToWrappedConnection();
+            return;
+        }
+        Connection connection = opener.open();
+        try {
+            if (!applicationAutoCommit) {
+                connection.setAutoCommit(false);
+            }
+            if (readOnly != null) {
+                connection.setReadOnly(readOnly);
+            }
+            if (transactionIsolation != null) {
+                connection.setTransactionIsolation(transactionIsolation);
+            }
+        } catch (SQLException ex) {
+            connection.close();
+            throw ex;
+        }
+        actualConnection = connection;
+        realConnection = connection;
+        opener = null;
+        openConnections.register(this, connection);
+    }
+
+    /**
+     * @return whether the actual database connection is not opened yet, so settings are remembered until it is
+     * @throws SQLException if this connection was closed before it was opened
+     */
+    private boolean isPostponed() throws SQLException {
+        if (opener != null && closed) {
+            throw new SQLException("connection is closed");
+        }
+        return opener != null;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        super.acquire();
+        try {
+            return opener != null ? closed : realConnection.isClosed();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * A connection that is not opened yet is valid, so connection pools do not open it to check.
+     */
     @Override
-    public synchronized void close() throws SQLException {
-        //close the actual connection, not the wrapped one :)
-        if (actualConnection != null) {
-            actualConnection.close();
+    public boolean isValid(int timeout) throws SQLException {
+        super.acquire();
+        try {
+            return opener != null ? !closed : realConnection.isValid(timeout);
+        } finally {
+            release();
         }
-        synchronized (openConnections) {
-            openConnections.remove(this.getConnectionNumber());
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        super.acquire();
+        try {
+            if (isPostponed()) {
+                this.readOnly = readOnly;
+            } else {
+                super.setReadOnly(readOnly);
+            }
+        } finally {
+            release();
         }
     }
 
     @Override
-    public synchronized void forceStartTransaction() throws SQLException {
+    public void setTransactionIsolation(int level) throws SQLException {
+        super.acquire();
+        try {
+            if (isPostponed()) {
+                this.transactionIsolation = level;
+            } else {
+                super.setTransactionIsolation(level);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        super.acquire();
+        try {
+            if (opener != null) {
+                closed = true;
+                openConnections.unregister(this);
+                return;
+            }
+            //close the actual connection, not the wrapped one :)
+            if (actualConnection != null) {
+                actualConnection.close();
+            }
+            openConnections.unregister(this);
+            if (wrappedConnection instanceof TransactionWrappedConnection) {
+                //an emulated transaction that is still open is rolled back, so other connections can begin theirs
+                ((TransactionWrappedConnection) wrappedConnection).endEmulatedTransaction(this, true);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    public CleaningSession getSession() {
+        return session;
+    }
+
+    /**
+     * Until the forced transaction starts, this connection may switch to the transaction wrapped connection.
+     */
+    @Override
+    protected boolean mayReplaceRealConnection() {
+        return !inForcedTransaction;
+    }
+
+    /**
+     * Statements are timed here, as the application sees them, and added up on the transaction wrapped connection.
+     */
+    @Override
+    protected StatementStatistics statementStatistics() {
+        if (wrappedConnection instanceof TransactionWrappedConnection) {
+            StatementStatistics statistics = ((TransactionWrappedConnection) wrappedConnection).getStatementStatistics();
+            if (statistics.isEnabled()) {
+                return statistics;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Statements are recorded here, as the application executes them, in the recording of the transaction wrapped
+     * connection.
+     */
+    @Override
+    WorkloadRecorder workloadRecorder() {
+        if (wrappedConnection instanceof TransactionWrappedConnection) {
+            return ((TransactionWrappedConnection) wrappedConnection).getWorkloadRecorder();
+        }
+        return null;
+    }
+
+    /**
+     * Copy the table the SQL writes to before it is changed, while the table snapshot strategy is active.
+     */
+    @Override
+    protected void beforeExecute(String sql) throws SQLException {
+        if (session.isSnapshotting() && wrappedConnection instanceof TransactionWrappedConnection) {
+            ((TransactionWrappedConnection) wrappedConnection).getTableSnapshots().beforeWrite(realConnection, sql);
+        }
+        if (!applicationAutoCommit && isEmulatingTransactions()) {
+            //the first statement of a transaction begins it
+            ((TransactionWrappedConnection) wrappedConnection).beginEmulatedTransaction(this);
+        }
+    }
+
+    /**
+     * @return whether commits and rollbacks of the application are emulated with savepoints right now
+     */
+    private boolean isEmulatingTransactions() {
+        return inForcedTransaction && wrappedConnection instanceof TransactionWrappedConnection
+                && ((TransactionWrappedConnection) wrappedConnection).isEmulatingTransactions();
+    }
+
+    @Override
+    public void forceStartTransaction() throws SQLException {
+        super.acquire();
+        try {
+            switchToWrappedConnection();
+            if (actualConnection != null && !actualConnection.isClosed()) {
+                if (!actualConnection.getAutoCommit()) {
+                    actualConnection.rollback();//make sure we rollback the connection
+                }
+                actualConnection.close();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Switch to the transaction wrapped connection. An actual database connection that was not opened yet never will
+     * be, and the settings made for it are dropped, as they are for one that is open.
+     */
+    private void switchToWrappedConnection() {
         realConnection = wrappedConnection;
         this.inForcedTransaction = true;
-        if (actualConnection != null && !actualConnection.isClosed()) {
-            if (!actualConnection.getAutoCommit()) {
-                actualConnection.rollback();//make sure we rollback the connection
+        opener = null;
+        readOnly = null;
+        transactionIsolation = null;
+    }
+
+    @Override
+    public void setAutoCommit(boolean commit) throws SQLException {
+        super.acquire();
+        try {
+            if (isPostponed()) {
+                //applied when the actual connection is opened
+            } else if (isEmulatingTransactions()) {
+                if (commit) {
+                    //turning auto-commit on commits the current transaction
+                    ((TransactionWrappedConnection) wrappedConnection).endEmulatedTransaction(this, false);
+                }
+            } else {
+                super.setAutoCommit(commit);
+            }
+            applicationAutoCommit = commit;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        super.acquire();
+        try {
+            return isPostponed() || isEmulatingTransactions() ? applicationAutoCommit : super.getAutoCommit();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * While forced, and if the transaction wrapped connection emulates transactions, this releases the savepoint that
+     * marks the start of the transaction of the application, see
+     * {@link TransactionWrappedConnection#endEmulatedTransaction}. Its changes stay part of the forced transaction.
+     */
+    @Override
+    public void commit() throws SQLException {
+        acquire();
+        try {
+            if (!isEmulatingTransactions()) {
+                super.commit();
+            } else {
+                ((TransactionWrappedConnection) wrappedConnection).endEmulatedTransaction(this, false);
             }
-            actualConnection.close();
+        } finally {
+            release();
         }
+    }
 
+    /**
+     * While forced, and if the transaction wrapped connection emulates transactions, this rolls back to the savepoint
+     * that marks the start of the transaction of the application. As the connections share one underlying connection,
+     * this also undoes what other connections changed since then.
+     */
+    @Override
+    public void rollback() throws SQLException {
+        acquire();
+        try {
+            if (!isEmulatingTransactions()) {
+                super.rollback();
+            } else {
+                ((TransactionWrappedConnection) wrappedConnection).endEmulatedTransaction(this, true);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * The forced transaction and the emulated transaction of the application live on the transaction wrapped
+     * connection, which ends both.
+     */
+    @Override
+    public void forceRollbackTransaction() throws SQLException {
+    }
+
+    @Override
+    public void forceCommitTransaction() throws SQLException {
     }
 
+    /**
+     * Savepoints live on the underlying transaction wrapped connection, which this connection routes to while forced.
+     */
     @Override
-    public synchronized void setAutoCommit(boolean commit) throws SQLException {
-        super.setAutoCommit(commit);
+    public void forceSetSavepoint(String name) throws SQLException {
     }
 
     @Override
-    public synchronized void forceRollbackTransaction() throws SQLException {
+    public void forceRollbackToSavepoint(String name) throws SQLException {
     }
 
     @Override
-    public synchronized void forceCommitTransaction() throws SQLException {
+    public void forceReleaseSavepoint(String name) throws SQLException {
     }
 }
@@ -0,0 +1,433 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copies of the tables written through the connections to one database, for the
+ * {@link CleaningStrategy#TABLE_SNAPSHOT} strategy. A table is copied right before the first statement that writes to
+ * it, so only the tables a test actually touches are copied and restored.
+ *
+ * DDL is not tracked, and not undone: tables that were created stay, tables that were dropped stay dropped, and
+ * altered tables keep their new definition. Only the rows of tables that existed when they were first written to are
+ * restored.
+ */
+class TableSnapshots {
+
+    /**
+     * The snapshots by normalized table name, in the order the tables were first written to
+     */
+    private final Map<String, TableSnapshot> snapshots = new LinkedHashMap<String, TableSnapshot>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Copy the table the given SQL writes to, if it has not been copied yet.
+     *
+     * @param connection the connection that is about to execute the SQL
+     * @param sql the SQL that is about to be executed
+     * @throws SQLException if the table could not be copied
+     */
+    void beforeWrite(Connection connection, String sql) throws SQLException {
+        lock.lock();
+        try {
+            String table = SqlTables.writtenTable(sql);
+            if (table != null) {
+                String key = SqlTables.normalize(table);
+                if (!snapshots.containsKey(key)) {
+                    snapshots.put(key, TableSnapshot.take(connection, table));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the names of the tables that have been written to, as written in the SQL
+     */
+    Set<String> getDirtyTables() {
+        lock.lock();
+        try {
+            Set<String> tables = new LinkedHashSet<String>();
+            for (TableSnapshot snapshot : snapshots.values()) {
+                tables.add(snapshot.table);
+            }
+            return tables;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            snapshots.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restore all copied tables in a single transaction, then forget the copies. Rows are matched on primary key, so
+     * only rows that were added, changed or removed are written; tables without a primary key are emptied and filled
+     * again. Tables are processed in foreign key order.
+     *
+     * @param connection a connection that is not used by the application
+     * @throws SQLException if a table could not be restored. The copies are kept, so the restore can be retried.
+     */
+    void restore(Connection connection) throws SQLException {
+        lock.lock();
+        try {
+            if (snapshots.isEmpty()) {
+                return;
+            }
+            List<TableSnapshot> parentsFirst = sortParentsFirst(connection);
+            List<TableSnapshot> childrenFirst = new ArrayList<TableSnapshot>(parentsFirst);
+            Collections.reverse(childrenFirst);
+
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                Map<TableSnapshot, Map<List<Object>, Object[]>> currentRows
+                        = new HashMap<TableSnapshot, Map<List<Object>, Object[]>>();
+                for (TableSnapshot snapshot : childrenFirst) {
+                    currentRows.put(snapshot, snapshot.deleteAddedRows(connection));
+                }
+                for (TableSnapshot snapshot : parentsFirst) {
+                    snapshot.restoreRows(connection, currentRows.get(snapshot));
+                }
+                connection.commit();
+                snapshots.clear();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sort the snapshots so that tables referenced by a foreign key come before the tables referencing them. Tables in
+     * a reference cycle keep the order in which they were first written.
+     */
+    private List<TableSnapshot> sortParentsFirst(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, TableSnapshot> entry : snapshots.entrySet()) {
+            Set<String> tableParents = new HashSet<String>();
+            TableSnapshot snapshot = entry.getValue();
+            ResultSet keys = metaData.getImportedKeys(null, TableSnapshot.schemaPattern(metaData, snapshot.table),
+                    TableSnapshot.tablePattern(metaData, snapshot.table));
+            try {
+                while (keys.next()) {
+                    String parent = SqlTables.normalize(keys.getString("PKTABLE_NAME"));
+                    for (String key : snapshots.keySet()) {
+                        if (!key.equals(entry.getKey()) && (key.equals(parent) || key.endsWith("." + parent))) {
+                            tableParents.add(key);
+                        }
+                    }
+                }
+            } finally {
+                keys.close();
+            }
+            parents.put(entry.getKey(), tableParents);
+        }
+
+        List<TableSnapshot> sorted = new ArrayList<TableSnapshot>();
+        Set<String> done = new HashSet<String>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Map.Entry<String, TableSnapshot> entry : snapshots.entrySet()) {
+                if (!done.contains(entry.getKey()) && done.containsAll(parents.get(entry.getKey()))) {
+                    sorted.add(entry.getValue());
+                    done.add(entry.getKey());
+                    progress = true;
+                }
+            }
+        }
+        for (Map.Entry<String, TableSnapshot> entry : snapshots.entrySet()) {
+            if (!done.contains(entry.getKey())) {
+                sorted.add(entry.getValue());
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * The contents of one table at the moment it was first written to.
+     */
+    static class TableSnapshot {
+
+        final String table;
+        private final String[] columns;
+        private final int[] types;
+        /**
+         * Indexes into columns of the primary key columns. Empty if the table has no primary key.
+         */
+        private final int[] primaryKey;
+        private final Map<List<Object>, Object[]> rows;
+
+        private TableSnapshot(String table, String[] columns, int[] types, int[] primaryKey,
+                Map<List<Object>, Object[]> rows) {
+            this.table = table;
+            this.columns = columns;
+            this.types = types;
+            this.primaryKey = primaryKey;
+            this.rows = rows;
+        }
+
+        static TableSnapshot take(Connection connection, String table) throws SQLException {
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet resultSet = statement.executeQuery("SELECT * FROM " + table);
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                String[] columns = new String[metaData.getColumnCount()];
+                int[] types = new int[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = metaData.getColumnName(i + 1);
+                    types[i] = metaData.getColumnType(i + 1);
+                }
+                int[] primaryKey = findPrimaryKey(connection, table, columns);
+                Map<List<Object>, Object[]> rows = readRows(resultSet, columns.length, primaryKey);
+                return new TableSnapshot(table, columns, types, primaryKey, rows);
+            } finally {
+                statement.close();
+            }
+        }
+
+        private static int[] findPrimaryKey(Connection connection, String table, String[] columns) throws SQLException {
+            DatabaseMetaData metaData = connection.getMetaData();
+            Map<Short, Integer> keyColumns = new TreeMap<Short, Integer>();
+            ResultSet keys = metaData.getPrimaryKeys(null, schemaPattern(metaData, table), tablePattern(metaData, table));
+            try {
+                while (keys.next()) {
+                    String column = keys.getString("COLUMN_NAME");
+                    for (int i = 0; i < columns.length; i++) {
+                        if (columns[i].equalsIgnoreCase(column)) {
+                            keyColumns.put(keys.getShort("KEY_SEQ"), i);
+                        }
+                    }
+                }
+            } finally {
+                keys.close();
+            }
+            int[] primaryKey = new int[keyColumns.size()];
+            int i = 0;
+            for (Integer column : keyColumns.values()) {
+                primaryKey[i++] = column;
+            }
+            return primaryKey;
+        }
+
+        /**
+         * Read all rows, keyed by their primary key values, or by a row number if there is no primary key.
+         */
+        private static Map<List<Object>, Object[]> readRows(ResultSet resultSet, int columnCount, int[] primaryKey)
+                throws SQLException {
+            Map<List<Object>, Object[]> rows = new LinkedHashMap<List<Object>, Object[]>();
+            int rowNumber = 0;
+            while (resultSet.next()) {
+                Object[] row = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = readValue(resultSet, i + 1);
+                }
+                List<Object> key = new ArrayList<Object>();
+                if (primaryKey.length == 0) {
+                    key.add(rowNumber++);
+                } else {
+                    for (int column : primaryKey) {
+                        key.add(row[column]);
+                    }
+                }
+                rows.put(key, row);
+            }
+            resultSet.close();
+            return rows;
+        }
+
+        /**
+         * Read a column value, copying LOBs, because their locators do not outlive the result set.
+         */
+        private static Object readValue(ResultSet resultSet, int column) throws SQLException {
+            Object value = resultSet.getObject(column);
+            if (value instanceof Clob) {
+                Clob clob = (Clob) value;
+                return clob.getSubString(1, (int) clob.length());
+            } else if (value instanceof Blob) {
+                Blob blob = (Blob) value;
+                return blob.getBytes(1, (int) blob.length());
+            }
+            return value;
+        }
+
+        /**
+         * Delete the rows that were added since the snapshot was taken, or all rows if there is no primary key.
+         *
+         * @return the remaining rows, keyed like the snapshot
+         */
+        Map<List<Object>, Object[]> deleteAddedRows(Connection connection) throws SQLException {
+            Map<List<Object>, Object[]> current;
+            Statement statement = connection.createStatement();
+            try {
+                if (primaryKey.length == 0) {
+                    statement.executeUpdate("DELETE FROM " + table);
+                    return new HashMap<List<Object>, Object[]>();
+                }
+                current = readRows(statement.executeQuery("SELECT * FROM " + table), columns.length, primaryKey);
+            } finally {
+                statement.close();
+            }
+
+            PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE " + keyCondition());
+            try {
+                boolean batched = false;
+                for (Map.Entry<List<Object>, Object[]> row : current.entrySet()) {
+                    if (!rows.containsKey(row.getKey())) {
+                        bindKey(delete, row.getValue(), 1);
+                        delete.addBatch();
+                        batched = true;
+                    }
+                }
+                if (batched) {
+                    delete.executeBatch();
+                }
+            } finally {
+                delete.close();
+            }
+            current.keySet().retainAll(rows.keySet());
+            return current;
+        }
+
+        /**
+         * Insert the rows that were removed and update the rows that were changed since the snapshot was taken.
+         *
+         * @param current the rows that remain after {@link #deleteAddedRows(Connection)}
+         */
+        void restoreRows(Connection connection, Map<List<Object>, Object[]> current) throws SQLException {
+            StringBuilder insertSql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            StringBuilder values = new StringBuilder();
+            StringBuilder updateSql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            for (int i = 0; i < columns.length; i++) {
+                String separator = i == 0 ? "" : ", ";
+                insertSql.append(separator).append(columns[i]);
+                values.append(separator).append('?');
+                updateSql.append(separator).append(columns[i]).append(" = ?");
+            }
+            insertSql.append(") VALUES (").append(values).append(')');
+            updateSql.append(" WHERE ").append(keyCondition());
+
+            PreparedStatement insert = connection.prepareStatement(insertSql.toString());
+            PreparedStatement update = primaryKey.length == 0 ? null : connection.prepareStatement(updateSql.toString());
+            try {
+                boolean inserted = false;
+                boolean updated = false;
+                for (Map.Entry<List<Object>, Object[]> row : rows.entrySet()) {
+                    Object[] currentRow = current.get(row.getKey());
+                    if (currentRow == null) {
+                        bindRow(insert, row.getValue());
+                        insert.addBatch();
+                        inserted = true;
+                    } else if (!Arrays.deepEquals(currentRow, row.getValue())) {
+                        bindRow(update, row.getValue());
+                        bindKey(update, row.getValue(), columns.length + 1);
+                        update.addBatch();
+                        updated = true;
+                    }
+                }
+                if (inserted) {
+                    insert.executeBatch();
+                }
+                if (updated) {
+                    update.executeBatch();
+                }
+            } finally {
+                insert.close();
+                if (update != null) {
+                    update.close();
+                }
+            }
+        }
+
+        private String keyCondition() {
+            StringBuilder condition = new StringBuilder();
+            for (int i = 0; i < primaryKey.length; i++) {
+                condition.append(i == 0 ? "" : " AND ").append(columns[primaryKey[i]]).append(" = ?");
+            }
+            return condition.toString();
+        }
+
+        private void bindRow(PreparedStatement statement, Object[] row) throws SQLException {
+            for (int i = 0; i < columns.length; i++) {
+                bind(statement, i + 1, row[i], types[i]);
+            }
+        }
+
+        private void bindKey(PreparedStatement statement, Object[] row, int firstIndex) throws SQLException {
+            for (int i = 0; i < primaryKey.length; i++) {
+                bind(statement, firstIndex + i, row[primaryKey[i]], types[primaryKey[i]]);
+            }
+        }
+
+        private static void bind(PreparedStatement statement, int index, Object value, int type) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, type);
+            } else {
+                statement.setObject(index, value);
+            }
+        }
+
+        /**
+         * @return the schema part of a table name, in the case the database stores it, or null if there is none
+         */
+        static String schemaPattern(DatabaseMetaData metaData, String table) throws SQLException {
+            String name = SqlTables.unquote(table);
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                return null;
+            }
+            return storedCase(metaData, name.substring(0, dot), table.substring(0, table.lastIndexOf('.')));
+        }
+
+        /**
+         * @return the table part of a table name, in the case the database stores it
+         */
+        static String tablePattern(DatabaseMetaData metaData, String table) throws SQLException {
+            String name = SqlTables.unquote(table);
+            return storedCase(metaData, name.substring(name.lastIndexOf('.') + 1), table);
+        }
+
+        private static String storedCase(DatabaseMetaData metaData, String name, String written) throws SQLException {
+            if (SqlTables.isQuoted(written)) {
+                return name;
+            } else if (metaData.storesUpperCaseIdentifiers()) {
+                return name.toUpperCase();
+            } else if (metaData.storesLowerCaseIdentifiers()) {
+                return name.toLowerCase();
+            }
+            return name;
+        }
+    }
+}
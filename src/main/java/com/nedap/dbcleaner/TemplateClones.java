@@ -0,0 +1,237 @@
+package com.nedap.dbcleaner;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Clones of template databases, one per worker, so several test JVMs can use the same database server at the same time
+ * without seeing each other's data. A jdbc:dbcleaner:template: URL names the template; the first connect in a JVM
+ * creates the clone, and all connections go to the clone instead. The clones are dropped when the JVM exits.
+ *
+ * A worker is identified by the system property {@value #WORKER_PROPERTY}, for example the fork number of the test
+ * runner, and by the process id if it is not set.
+ */
+class TemplateClones {
+
+    static final String WORKER_PROPERTY = "dbcleaner.worker";
+
+    private static final Logger logger = Logger.getLogger(TemplateClones.class.getName());
+
+    /**
+     * URLs of database servers: prefix, name of the database, parameters
+     */
+    private static final Pattern SERVER_URL = Pattern.compile("(jdbc:(postgresql|mysql)://[^/]*/)([^?;/]+)(.*)");
+    /**
+     * URLs of in-memory databases: prefix, name of the database, parameters
+     */
+    private static final Pattern MEMORY_URL = Pattern.compile("(jdbc:(hsqldb|h2):mem:)([^;]+)(.*)");
+
+    /**
+     * The clones created by this JVM, by template URL
+     */
+    private static final Map<String, Clone> clones = new LinkedHashMap<String, Clone>();
+    private static boolean shutdownHookAdded = false;
+
+    /**
+     * @param driver the driver of the template database
+     * @param templateUrl the URL of the template database
+     * @param info the properties to connect with
+     * @return the URL of the clone of the template for this worker, created first if this is the first time
+     * @throws SQLException if the clone could not be created
+     */
+    static synchronized String cloneOf(Driver driver, String templateUrl, Properties info) throws SQLException {
+        Clone clone = clones.get(templateUrl);
+        if (clone == null) {
+            clone = create(driver, templateUrl, info);
+            clones.put(templateUrl, clone);
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(TemplateClones::dropAll, "dbcleaner template clones"));
+                shutdownHookAdded = true;
+            }
+        }
+        return clone.url;
+    }
+
+    /**
+     * Close the shared underlying connections to the clones and drop them.
+     */
+    static synchronized void dropAll() {
+        for (Clone clone : clones.values()) {
+            try {
+                DBCleaner.closeUnderlyingConnections(clone.url);
+                clone.drop();
+            } catch (SQLException ex) {
+                logger.log(Level.WARNING, "could not drop template clone " + clone.url, ex);
+            }
+        }
+        clones.clear();
+    }
+
+    static String workerId() {
+        return System.getProperty(WORKER_PROPERTY, Long.toString(ProcessHandle.current().pid()));
+    }
+
+    private static Clone create(Driver driver, String templateUrl, Properties info) throws SQLException {
+        String suffix = "_" + workerId().replaceAll("[^A-Za-z0-9_]", "_");
+        Matcher server = SERVER_URL.matcher(templateUrl);
+        Matcher memory = MEMORY_URL.matcher(templateUrl);
+        Clone clone;
+        if (server.matches() && server.group(2).equals("postgresql")) {
+            //a template cannot be copied while connected to it, so connect to the maintenance database instead
+            String name = server.group(3) + suffix;
+            clone = new Clone(driver, info, "postgresql", server.group(3), name,
+                    server.group(1) + name + server.group(4), server.group(1) + "postgres" + server.group(4));
+            clone.createPostgresql();
+        } else if (server.matches()) {
+            String name = server.group(3) + suffix;
+            clone = new Clone(driver, info, "mysql", server.group(3), name,
+                    server.group(1) + name + server.group(4), templateUrl);
+            clone.createMysql();
+        } else if (memory.matches()) {
+            String name = memory.group(3) + suffix;
+            clone = new Clone(driver, info, memory.group(2), memory.group(3), name,
+                    memory.group(1) + name + memory.group(4), templateUrl);
+            clone.createInMemory();
+        } else {
+            throw new SQLException("cannot clone template " + templateUrl
+                    + ", only PostgreSQL, MySQL and in-memory HSQLDB and H2 databases are supported");
+        }
+        return clone;
+    }
+
+    /**
+     * The clone of one template database
+     */
+    private static class Clone {
+
+        final Driver driver;
+        final Properties info;
+        /**
+         * postgresql, mysql, hsqldb or h2
+         */
+        final String kind;
+        final String templateName;
+        final String name;
+        final String url;
+        /**
+         * The URL to connect to when creating and dropping the clone
+         */
+        final String adminUrl;
+
+        Clone(Driver driver, Properties info, String kind, String templateName, String name, String url,
+                String adminUrl) {
+            this.driver = driver;
+            this.info = info;
+            this.kind = kind;
+            this.templateName = templateName;
+            this.name = name;
+            this.url = url;
+            this.adminUrl = adminUrl;
+        }
+
+        void createPostgresql() throws SQLException {
+            try (Connection admin = connect(adminUrl); Statement statement = admin.createStatement()) {
+                //left over if a previous run of this worker was killed
+                statement.execute("DROP DATABASE IF EXISTS " + quote(name, '"'));
+                for (int attempt = 1;; attempt++) {
+                    try {
+                        statement.execute("CREATE DATABASE " + quote(name, '"') + " TEMPLATE " + quote(templateName, '"'));
+                        return;
+                    } catch (SQLException ex) {
+                        //PostgreSQL copies a template for one worker at a time: object_in_use
+                        if (!"55006".equals(ex.getSQLState()) || attempt == 20) {
+                            throw ex;
+                        }
+                        pause(attempt * 100L);
+                    }
+                }
+            }
+        }
+
+        void createMysql() throws SQLException {
+            try (Connection admin = connect(adminUrl); Statement statement = admin.createStatement()) {
+                statement.execute("DROP DATABASE IF EXISTS " + quote(name, '`'));
+                statement.execute("CREATE DATABASE " + quote(name, '`'));
+                statement.execute("SET FOREIGN_KEY_CHECKS = 0");
+                try {
+                    for (String table : tables(admin, templateName)) {
+                        statement.execute("CREATE TABLE " + quote(name, '`') + "." + quote(table, '`')
+                                + " LIKE " + quote(templateName, '`') + "." + quote(table, '`'));
+                        statement.execute("INSERT INTO " + quote(name, '`') + "." + quote(table, '`')
+                                + " SELECT * FROM " + quote(templateName, '`') + "." + quote(table, '`'));
+                    }
+                } finally {
+                    statement.execute("SET FOREIGN_KEY_CHECKS = 1");
+                }
+            }
+        }
+
+        /**
+         * Copy the template into a new in-memory database, the way a checkpoint is taken and restored.
+         */
+        void createInMemory() throws SQLException {
+            try (Connection template = connect(adminUrl); Connection clone = connect(url)) {
+                EngineCheckpoint.take(template).copyInto(clone);
+            }
+        }
+
+        void drop() throws SQLException {
+            if (kind.equals("hsqldb") || kind.equals("h2")) {
+                try (Connection clone = connect(url); Statement statement = clone.createStatement()) {
+                    statement.execute("SHUTDOWN");
+                }
+            } else {
+                char quote = kind.equals("mysql") ? '`' : '"';
+                try (Connection admin = connect(adminUrl); Statement statement = admin.createStatement()) {
+                    statement.execute("DROP DATABASE IF EXISTS " + quote(name, quote));
+                }
+            }
+        }
+
+        private Connection connect(String url) throws SQLException {
+            Connection connection = driver.connect(url, info);
+            if (connection == null) {
+                throw new SQLException("invalid or unknown driver url: " + url);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * @return the names of the tables in the given catalog
+     */
+    private static List<String> tables(Connection connection, String catalog) throws SQLException {
+        List<String> tables = new ArrayList<String>();
+        try (ResultSet result = connection.getMetaData().getTables(catalog, null, "%", new String[]{"TABLE"})) {
+            while (result.next()) {
+                tables.add(result.getString("TABLE_NAME"));
+            }
+        }
+        return tables;
+    }
+
+    private static String quote(String identifier, char quote) {
+        return quote + identifier.replace(String.valueOf(quote), String.valueOf(quote) + quote) + quote;
+    }
+
+    private static void pause(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for the template database", ex);
+        }
+    }
+}
@@ -1,94 +1,113 @@
 package com.nedap.dbcleaner;
 
-import java.sql.SQLException;
 import java.util.List;
 
 /**
+ * Starts, rolls back and commits cleaning in the {@link CleaningSession} of the current thread, which is the default
+ * session unless another session is bound to the thread.
  *
  * @author pieter.bos
  */
 public class TransactionUtil {
 
-    private static boolean started = false;
-    private static boolean startedAtLeastOnce = false;
-
-    public static synchronized void startTransactions() {
-        if (!started) {
-            //start the transaction
-            List<TransactionWrappedConnection> connectionList = TransactionWrappedConnection.getOpenConnections();
-            for (TransactionWrappedConnection c : connectionList) {
-                start(c);
-            }
-
-            //wrap the switching connection
-            List<SwitchingConnectionWrapper> switchingConnections = SwitchingConnectionWrapper.getOpenConnections();
-            for (SwitchingConnectionWrapper c : switchingConnections) {
-                start(c);
-            }
-            started = true;
-            startedAtLeastOnce = true;
-        }
-        //else: we're already in a forced transaction, ignore!
+    /**
+     * Choose how the database is cleaned in the current session, see {@link CleaningSession#setStrategy}.
+     */
+    public static void setStrategy(CleaningStrategy cleaningStrategy) {
+        CleaningSession.current().setStrategy(cleaningStrategy);
+    }
+
+    public static CleaningStrategy getStrategy() {
+        return CleaningSession.current().getStrategy();
+    }
+
+    public static void startTransactions() {
+        CleaningSession.current().startTransactions();
+    }
+
+    public static void rollbackTransactions() {
+        CleaningSession.current().rollbackTransactions();
+    }
+
+    public static void commitTransactions() {
+        CleaningSession.current().commitTransactions();
+    }
+
+    /**
+     * Set a named savepoint on every underlying connection of the current session. Typical use is to load fixture
+     * data once after {@link #startTransactions()}, push a savepoint, and then {@link #rollbackToSavepoint(String)}
+     * after every test instead of reloading the fixture data.
+     *
+     * @param name the name of the savepoint, unique within the current forced transaction
+     * @throws CleaningException if the savepoint could not be set on some of the connections
+     */
+    public static void pushSavepoint(String name) {
+        CleaningSession.current().pushSavepoint(name);
+    }
+
+    /**
+     * Roll back every underlying connection of the current session to the named savepoint. The savepoint remains on
+     * the stack, so this can be repeated; savepoints pushed after it are discarded.
+     *
+     * @param name the name of a savepoint that was pushed before
+     * @throws CleaningException if some of the connections could not be rolled back
+     */
+    public static void rollbackToSavepoint(String name) {
+        CleaningSession.current().rollbackToSavepoint(name);
+    }
 
+    /**
+     * Roll back every underlying connection of the current session to the most recently pushed savepoint.
+     */
+    public static void rollbackToSavepoint() {
+        CleaningSession.current().rollbackToSavepoint();
     }
 
-    public static synchronized void rollbackTransactions() {
-        if (started) {
-            List<TransactionWrappedConnection> connectionList = TransactionWrappedConnection.getOpenConnections();
-            for (TransactionWrappedConnection c : connectionList) {
-                rollback(c);
-            }
-            //wrap the switching connection
-            List<SwitchingConnectionWrapper> switchingConnections = SwitchingConnectionWrapper.getOpenConnections();
-            for (SwitchingConnectionWrapper c : switchingConnections) {
-                rollback(c);
-            }
-            started = false;
-        }
-        //else: we can't rollback outside of a transaction
+    /**
+     * Release the most recently pushed savepoint. Its changes stay part of the forced transaction.
+     *
+     * @return the name of the released savepoint
+     * @throws CleaningException if the savepoint could not be released on some of the connections
+     */
+    public static String popSavepoint() {
+        return CleaningSession.current().popSavepoint();
     }
 
-    public static synchronized void commitTransactions() {
-        if (started) {
-            List<TransactionWrappedConnection> connectionList = TransactionWrappedConnection.getOpenConnections();
-            for (TransactionWrappedConnection c : connectionList) {
-                commit(c);
-            }
-            //wrap the switching connection
-            List<SwitchingConnectionWrapper> switchingConnections = SwitchingConnectionWrapper.getOpenConnections();
-            for (SwitchingConnectionWrapper c : switchingConnections) {
-                commit(c);
-            }
-            started = false;
-        }
-        //else: we can't rollback outside of a transaction
+    /**
+     * @return the names of the pushed savepoints, most recent first
+     */
+    public static List<String> getSavepoints() {
+        return CleaningSession.current().getSavepoints();
     }
 
-    public static synchronized boolean isInForcedTransaction() {
-        return startedAtLeastOnce;
+    /**
+     * Take a named copy of every embedded HSQLDB or H2 database of the current session, see
+     * {@link CleaningSession#checkpoint(String)}. Typical use is to load fixture data once, take a checkpoint, and
+     * {@link #restore(String)} it after tests that change the schema.
+     *
+     * @param name the name of the checkpoint
+     */
+    public static void checkpoint(String name) {
+        CleaningSession.current().checkpoint(name);
     }
 
-    protected static void start(ForceableConnection c) {
-        try {
-            c.forceStartTransaction();
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-        }
+    /**
+     * Restore a checkpoint taken with {@link #checkpoint(String)}. This also undoes DDL, and commits.
+     *
+     * @param name the name of the checkpoint
+     */
+    public static void restore(String name) {
+        CleaningSession.current().restore(name);
     }
 
-    protected static void commit(ForceableConnection c) {
-        try {
-            c.forceCommitTransaction();
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-        }
+    public static boolean isInForcedTransaction() {
+        return CleaningSession.current().isInForcedTransaction();
     }
 
-    protected static void rollback(ForceableConnection c) {
-        try {
-            c.forceRollbackTransaction();
-        } catch (SQLException ex) {
-            ex.printStackTrace();//TODO: replace me!
-        }
+    /**
+     * @return whether tables are copied before they are first written to, see {@link CleaningStrategy#TABLE_SNAPSHOT}
+     */
+    public static boolean isSnapshotting() {
+        return CleaningSession.current().isSnapshotting();
     }
 }
@@ -1,11 +1,17 @@
 package com.nedap.dbcleaner;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.sql.Savepoint;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import javax.sql.XAConnection;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
 
 /**
  *
@@ -15,84 +21,811 @@ public class TransactionWrappedConnection extends BaseConnectionWrapper implemen
 
     private volatile boolean inForcedTransaction = false;
 
-    private static final Map<Integer, BaseConnectionWrapper> openConnections = new HashMap<Integer, BaseConnectionWrapper>();
+    /**
+     * Savepoints set inside the forced transaction, in the order they were set
+     */
+    private final LinkedHashMap<String, Savepoint> savepoints = new LinkedHashMap<String, Savepoint>();
+
+    /**
+     * Copies of the tables written to, for the table snapshot cleaning strategy
+     */
+    private final TableSnapshots tableSnapshots = new TableSnapshots();
+
+    /**
+     * Hands this connection out to one thread at a time, fairly
+     */
+    private final ConnectionScheduler scheduler = new ConnectionScheduler("shared connection " + getConnectionNumber());
+
+    /**
+     * Idle prepared statements, shared by all connections routed through this one. Disabled unless given a size.
+     */
+    private final StatementCache statementCache = new StatementCache();
+
+    /**
+     * Execution times of the statements of the connections routed through this one. Disabled by default.
+     */
+    private final StatementStatistics statementStatistics = new StatementStatistics();
+
+    /**
+     * Results of queries while forced, shared by all connections routed through this one. Disabled unless given a size.
+     */
+    private final ResultCache resultCache = new ResultCache();
+
+    /**
+     * Checks that rolling back restores the tables written while forced, or null to not check
+     */
+    private volatile RollbackVerifier rollbackVerifier;
+
+    /**
+     * Records the statements of the connections routed through this one, or null to not record them
+     */
+    private volatile WorkloadRecorder workloadRecorder;
+
+    /**
+     * The XA connection and its resource, for two phase commits, or null
+     */
+    private final XAConnection xaConnection;
+    private final XAResource xaResource;
+    /**
+     * The XA transaction branch of the forced transaction, or null if no branch is active or prepared
+     */
+    private Xid xid;
+    private boolean prepared = false;
+
+    /**
+     * The spare underlying connection to switch to on rollback, or null to roll back in place
+     */
+    private volatile StandbyConnection standby;
+
+    /**
+     * Whether the transactions of the application are emulated with savepoints while forced, instead of ignored
+     */
+    private volatile boolean emulateTransactions = false;
+    /**
+     * The connection of the application whose emulated transaction is open, or null. Only one connection at a time can
+     * have one: releasing or rolling back to a savepoint also discards the savepoints set after it, which would end the
+     * emulated transactions of other connections, and the savepoints of the session.
+     */
+    private SwitchingConnectionWrapper emulatedTransactionOwner;
+    /**
+     * Marks where the open emulated transaction began, or null
+     */
+    private Savepoint emulatedTransactionStart;
+
+    /**
+     * Named copies of the database, least recently used first, if this is an embedded database that supports them
+     */
+    private final LinkedHashMap<String, EngineCheckpoint> checkpoints = new LinkedHashMap<String, EngineCheckpoint>(16, 0.75f, true);
+    private volatile int maxCheckpoints = 4;
+    /**
+     * Whether the database supports checkpoints, or null if not known yet
+     */
+    private Boolean checkpointsSupported;
+    /**
+     * Whether the database discards a savepoint when rolling back to it, or null if not known yet
+     */
+    private Boolean savepointDroppedOnRollback;
+
+    private static final ConnectionRegistry<TransactionWrappedConnection> openConnections = new ConnectionRegistry<TransactionWrappedConnection>();
+
+    /**
+     * The cleaning session this connection belongs to
+     */
+    private final CleaningSession session;
+
+    /**
+     * Whether {@link #forceClose()} was called, readable without waiting for the connection
+     */
+    private volatile boolean forceClosed = false;
 
     public static List<TransactionWrappedConnection> getOpenConnections() {
-        List<TransactionWrappedConnection> connections;
-        synchronized (openConnections) {
-            connections = new ArrayList(openConnections.values());
-        }
+        return openConnections.values();
+    }
 
+    /**
+     * @param session a cleaning session
+     * @return the open connections that belong to the given session
+     */
+    public static List<TransactionWrappedConnection> getOpenConnections(CleaningSession session) {
+        List<TransactionWrappedConnection> connections = getOpenConnections();
+        for (Iterator<TransactionWrappedConnection> i = connections.iterator(); i.hasNext();) {
+            if (i.next().getSession() != session) {
+                i.remove();
+            }
+        }
         return connections;
     }
 
     public TransactionWrappedConnection(Connection connection) {
+        this(connection, CleaningSession.current());
+    }
+
+    public TransactionWrappedConnection(Connection connection, CleaningSession session) {
+        this(connection, null, null, session);
+    }
+
+    /**
+     * Wrap a connection of an XA data source, so the forced transaction can be committed with a two phase commit
+     * together with those of the other databases.
+     *
+     * @param connection the connection of the XA connection
+     * @param xaConnection the XA connection
+     * @param session the cleaning session
+     */
+    public TransactionWrappedConnection(Connection connection, XAConnection xaConnection, CleaningSession session)
+            throws SQLException {
+        this(connection, xaConnection, xaConnection.getXAResource(), session);
+    }
+
+    private TransactionWrappedConnection(Connection connection, XAConnection xaConnection, XAResource xaResource,
+            CleaningSession session) {
         super(connection);
-        synchronized (openConnections) {
-            openConnections.put(getConnectionNumber(), this);
-        }
-        this.inForcedTransaction = TransactionUtil.isInForcedTransaction();
+        this.session = session;
+        this.xaConnection = xaConnection;
+        this.xaResource = xaResource;
+        openConnections.register(this, connection);
+        this.inForcedTransaction = session.isInForcedTransaction();
         if (inForcedTransaction) {
             try {
-                setAutoCommit(false);
+                if (xaResource != null) {
+                    begin();
+                } else {
+                    setAutoCommit(false);
+                }
             } catch (SQLException ex) {
                 throw new RuntimeException(ex);
             }
         }
     }
 
+    public ConnectionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    public StatementStatistics getStatementStatistics() {
+        return statementStatistics;
+    }
+
+    /**
+     * Check after every rollback of the forced transaction that the tables written in it were restored, see
+     * {@link RollbackVerifier}.
+     *
+     * @param checksums whether to compare checksums of all rows of the tables, instead of the number of rows
+     */
+    void enableRollbackVerification(boolean checksums) {
+        rollbackVerifier = new RollbackVerifier(checksums);
+    }
+
+    WorkloadRecorder getWorkloadRecorder() {
+        return workloadRecorder;
+    }
+
+    /**
+     * Record the statements of the connections routed through this one, see {@link WorkloadRecorder}.
+     */
+    void setWorkloadRecorder(WorkloadRecorder workloadRecorder) {
+        this.workloadRecorder = workloadRecorder;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    @Override
+    protected ResultCache resultCache() {
+        return resultCache.isEnabled() ? resultCache : null;
+    }
+
+    /**
+     * Roll back in the background from now on: keep a spare underlying connection, switch to it when the forced
+     * transaction is rolled back, and roll back the previous one while the spare is in use. Only for connections that
+     * are not XA connections.
+     *
+     * @param opener opens the spare underlying connections
+     */
+    void enablePipelinedRollback(StandbyConnection.Opener opener) {
+        if (xaResource == null && standby == null) {
+            standby = new StandbyConnection(opener);
+        }
+    }
+
+    /**
+     * Emulate the transactions of the application with savepoints inside the forced transaction, instead of ignoring
+     * their commits and rollbacks. See {@link SwitchingConnectionWrapper#rollback()}. The transactions of different
+     * connections cannot overlap: a connection that begins one while another has one open fails.
+     */
+    public void setEmulateTransactions(boolean emulateTransactions) {
+        this.emulateTransactions = emulateTransactions;
+    }
+
+    /**
+     * @return whether the transactions of the application are emulated right now, because the forced transaction is
+     * active and emulation is turned on
+     */
+    public boolean isEmulatingTransactions() {
+        return emulateTransactions && inForcedTransaction;
+    }
+
+    /**
+     * With pipelined rollbacks, the underlying connection changes on every rollback, so statements must be able to
+     * move to the new one.
+     */
+    @Override
+    protected boolean mayReplaceRealConnection() {
+        return standby != null;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (!statementCache.isEnabled()) {
+            return super.prepareStatement(sql);
+        }
+        return prepareCached(new StatementCache.Key(sql, -1, -1, -1, -1), c -> c.prepareStatement(sql), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        if (!statementCache.isEnabled()) {
+            return super.prepareStatement(sql, autoGeneratedKeys);
+        }
+        return prepareCached(new StatementCache.Key(sql, -1, -1, -1, autoGeneratedKeys),
+                c -> c.prepareStatement(sql, autoGeneratedKeys), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        if (!statementCache.isEnabled()) {
+            return super.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        return prepareCached(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, -1, -1),
+                c -> c.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability) throws SQLException {
+        if (!statementCache.isEnabled()) {
+            return super.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+        return prepareCached(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, resultSetHoldability, -1),
+                c -> c.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+    }
+
+    private PreparedStatement prepareCached(StatementCache.Key key,
+            StatementWrapper.StatementFactory<? extends PreparedStatement> factory, String sql) throws SQLException {
+        acquire();
+        try {
+            return new CachedPreparedStatementWrapper(this, statementCache, key, factory, sql);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    protected void acquire() throws SQLException {
+        scheduler.acquire(null);
+    }
+
+    /**
+     * Does not acquire the connection, so checking whether it is closed neither waits behind a rollback or a long
+     * statement, nor fails with the acquire timeout. Drivers answer this from the state they keep on the client.
+     */
+    @Override
+    public boolean isClosed() throws SQLException {
+        return forceClosed || realConnection.isClosed();
+    }
+
+    /**
+     * Does not acquire the connection, see {@link #isClosed()}.
+     */
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return realConnection.getMetaData();
+    }
+
+    @Override
+    protected void release() {
+        scheduler.release();
+    }
+
+    /**
+     * Statements hold the connection while they execute, so a timeout can tell which SQL is holding it up.
+     */
+    @Override
+    protected void beforeExecute(String sql) throws SQLException {
+        scheduler.acquire(sql);
+        resultCache.beforeExecute(sql);
+        if (rollbackVerifier != null && inForcedTransaction) {
+            rollbackVerifier.beforeExecute(realConnection, sql);
+        }
+    }
+
+    @Override
+    protected void afterExecute(String sql) {
+        scheduler.release();
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        acquire();
+        try {
+            if (!this.inForcedTransaction) {
+                realConnection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            release();
+        }
+    }
+
     @Override
-    public synchronized void setAutoCommit(boolean autoCommit) throws SQLException {
-        if (!this.inForcedTransaction) {
-            realConnection.setAutoCommit(autoCommit);
+    public void commit() throws SQLException {
+        acquire();
+        try {
+            if (!this.inForcedTransaction) {//skip the commit!
+                realConnection.commit();
+            } else {
+                CleanerMetrics.get().swallowedCommits.increment();
+            }
+        } finally {
+            release();
         }
     }
 
     @Override
-    public synchronized void commit() throws SQLException {
-        if (!this.inForcedTransaction) {//skip the commit!
-            realConnection.commit();
+    public void rollback() throws SQLException {
+        acquire();
+        try {
+            if (!this.inForcedTransaction) {//skip the commit!
+                realConnection.rollback();
+            } else {
+                CleanerMetrics.get().swallowedRollbacks.increment();
+            }
+        } finally {
+            release();
         }
     }
 
+    /**
+     * Rolling back to a savepoint undoes writes, so the cached results of queries are discarded.
+     */
     @Override
-    public synchronized void rollback() throws SQLException {
-        if (!this.inForcedTransaction) {//skip the commit!
-            realConnection.rollback();
+    public void rollback(Savepoint savepoint) throws SQLException {
+        acquire();
+        try {
+            resultCache.clear();
+            realConnection.rollback(savepoint);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Begin the emulated transaction of the given connection of the application, unless it already began, by setting a
+     * savepoint.
+     *
+     * @throws SQLException if another connection has an emulated transaction open on this connection
+     */
+    void beginEmulatedTransaction(SwitchingConnectionWrapper owner) throws SQLException {
+        acquire();
+        try {
+            if (emulatedTransactionOwner == owner) {
+                return;
+            }
+            if (emulatedTransactionOwner != null) {
+                throw new SQLException("connection " + owner.getConnectionNumber() + " cannot begin a transaction while"
+                        + " connection " + emulatedTransactionOwner.getConnectionNumber() + " has one open on shared"
+                        + " connection " + getConnectionNumber() + ": emulated transactions cannot overlap");
+            }
+            emulatedTransactionStart = realConnection.setSavepoint();
+            emulatedTransactionOwner = owner;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * End the emulated transaction of the given connection of the application, if it has one open, and release its
+     * savepoint.
+     *
+     * @param rollback whether to undo its changes, instead of keeping them in the forced transaction
+     */
+    void endEmulatedTransaction(SwitchingConnectionWrapper owner, boolean rollback) throws SQLException {
+        acquire();
+        try {
+            if (emulatedTransactionOwner != owner) {
+                return;
+            }
+            Savepoint start = emulatedTransactionStart;
+            forgetEmulatedTransaction();
+            if (rollback) {
+                resultCache.clear();
+                realConnection.rollback(start);
+                if (isSavepointDroppedOnRollback()) {
+                    return;
+                }
+            }
+            realConnection.releaseSavepoint(start);
+        } finally {
+            release();
         }
     }
+
+    /**
+     * Forget the open emulated transaction, because its savepoint was discarded.
+     */
+    private void forgetEmulatedTransaction() {
+        emulatedTransactionOwner = null;
+        emulatedTransactionStart = null;
+    }
+
     @Override
-    public synchronized void close() throws SQLException{
-        //don't ever close! But if we should need this:
-        /*
-         * synchronized (connectionTracker) {
-         *      connectionTracker.remove(connectionNumber);
-         *  }
-         */
+    public void close() throws SQLException{
+        acquire();
+        try {
+            //don't ever close! But if we should need this:
+            /*
+             * synchronized (connectionTracker) {
+             *      connectionTracker.remove(connectionNumber);
+             *  }
+             */
+        } finally {
+            release();
+        }
     }
 
     /** force a close on this connection, mainly for cleaning up after tests*/
-    public synchronized void forceClose() throws SQLException {
-        synchronized (openConnections) {
-            openConnections.remove(getConnectionNumber());
+    public void forceClose() throws SQLException {
+        acquire();
+        try {
+            forceClosed = true;
+            openConnections.unregister(this);
+            statementCache.clear();
+            resultCache.setActive(false);
+            realConnection.close();
+            if (standby != null) {
+                standby.close();
+            }
+            if (xaConnection != null) {
+                xaConnection.close();
+            }
+        } finally {
+            release();
         }
-        realConnection.close();
+    }
 
+    /**
+     * @return whether {@link #forceClose()} was called
+     */
+    public boolean isForceClosed() {
+        return forceClosed;
     }
 
-    public synchronized void forceStartTransaction() throws SQLException {
-        this.inForcedTransaction = true;
-        realConnection.setAutoCommit(false);
+    public void forceStartTransaction() throws SQLException {
+        acquire();
+        try {
+            this.inForcedTransaction = true;
+            forgetEmulatedTransaction();
+            if (rollbackVerifier != null) {
+                rollbackVerifier.clear();
+            }
+            begin();
+            resultCache.setActive(true);
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void forceRollbackTransaction() throws SQLException {
-        this.inForcedTransaction = false;
-        this.rollback();
+    public void forceRollbackTransaction() throws SQLException {
+        acquire();
+        try {
+            this.inForcedTransaction = false;
+            resultCache.setActive(false);
+            savepoints.clear();
+            forgetEmulatedTransaction();
+            if (xaResource != null) {
+                endBranch(false);
+            } else if (standby != null) {
+                //cached statements belong to the connection that is about to be rolled back
+                statementCache.clear();
+                realConnection = standby.swap(realConnection);
+                openConnections.register(this, realConnection);
+            } else {
+                this.rollback();
+            }
+            if (rollbackVerifier != null) {
+                rollbackVerifier.verify(realConnection);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Commit the forced transaction. If it was prepared with {@link #forcePrepareTransaction()}, this is the second
+     * phase of a two phase commit.
+     */
+    public void forceCommitTransaction() throws SQLException {
+        acquire();
+        try {
+            this.inForcedTransaction = false;
+            resultCache.setActive(false);
+            savepoints.clear();
+            forgetEmulatedTransaction();
+            if (xaResource != null) {
+                endBranch(true);
+            } else {
+                this.commit();
+            }
+        } finally {
+            release();
+        }
     }
 
-    public synchronized void forceCommitTransaction() throws SQLException {
-        this.inForcedTransaction = false;
-        this.commit();
+    /**
+     * @return whether the forced transaction can be prepared, because this wraps a connection of an XA data source
+     */
+    public boolean supportsTwoPhaseCommit() {
+        return xaResource != null;
+    }
+
+    /**
+     * The first phase of a two phase commit: make sure the forced transaction can be committed. Follow with
+     * {@link #forceCommitTransaction()} or {@link #forceRollbackTransaction()}.
+     */
+    public void forcePrepareTransaction() throws SQLException {
+        acquire();
+        try {
+            if (xaResource == null) {
+                throw new SQLException("connection " + getConnectionNumber() + " is not an XA connection");
+            }
+            if (xid != null && !prepared) {
+                try {
+                    xaResource.end(xid, XAResource.TMSUCCESS);
+                    prepared = true;
+                    if (xaResource.prepare(xid) == XAResource.XA_RDONLY) {
+                        //nothing was written, so there is nothing to commit
+                        xid = null;
+                        prepared = false;
+                    }
+                } catch (XAException ex) {
+                    throw xaFailure("prepare", ex);
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Begin the forced transaction, as an XA transaction branch if this is an XA connection.
+     */
+    private void begin() throws SQLException {
+        if (xaResource == null) {
+            realConnection.setAutoCommit(false);
+        } else if (xid == null) {
+            Xid branch = new BranchXid(session.getGlobalTransactionId(), getConnectionNumber());
+            try {
+                xaResource.start(branch, XAResource.TMNOFLAGS);
+            } catch (XAException ex) {
+                throw xaFailure("start", ex);
+            }
+            xid = branch;
+        }
+    }
+
+    /**
+     * End the XA transaction branch, if any, and commit it in one phase, commit it after it was prepared, or roll it
+     * back.
+     */
+    private void endBranch(boolean commit) throws SQLException {
+        if (xid == null) {
+            return;
+        }
+        Xid branch = xid;
+        boolean wasPrepared = prepared;
+        xid = null;
+        prepared = false;
+        try {
+            if (!wasPrepared) {
+                xaResource.end(branch, commit ? XAResource.TMSUCCESS : XAResource.TMFAIL);
+            }
+            if (commit) {
+                xaResource.commit(branch, !wasPrepared);
+            } else {
+                xaResource.rollback(branch);
+            }
+        } catch (XAException ex) {
+            throw xaFailure(commit ? "commit" : "rollback", ex);
+        }
+    }
+
+    private SQLException xaFailure(String action, XAException ex) {
+        return new SQLException("XA " + action + " failed on connection " + getConnectionNumber()
+                + ", error code " + ex.errorCode, ex);
+    }
+
+    public void forceSetSavepoint(String name) throws SQLException {
+        acquire();
+        try {
+            if (emulatedTransactionOwner != null) {
+                //releasing the savepoint of the emulated transaction would also release this one
+                throw new SQLException("cannot set savepoint " + name + " while connection "
+                        + emulatedTransactionOwner.getConnectionNumber() + " has an emulated transaction open");
+            }
+            if (xaResource != null) {
+                throw savepointsNotSupported();
+            }
+            savepoints.put(name, realConnection.setSavepoint(name));
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * JDBC does not allow savepoints, nor local rollbacks, while a connection takes part in a distributed transaction,
+     * as the forced transaction of an XA connection does.
+     */
+    private SQLException savepointsNotSupported() {
+        return new SQLException("connection " + getConnectionNumber()
+                + " is an XA connection, which cannot use savepoints inside its transaction branch");
+    }
+
+    public void forceRollbackToSavepoint(String name) throws SQLException {
+        acquire();
+        try {
+            resultCache.clear();
+            //the savepoints of the session are older than that of an emulated transaction, which is discarded
+            forgetEmulatedTransaction();
+            Savepoint savepoint = savepoints.get(name);
+            if (savepoint == null) {
+                //this connection was opened after the savepoint was set, so everything on it happened after the savepoint
+                if (xaResource != null) {
+                    //a local rollback inside the transaction branch is not allowed
+                    throw savepointsNotSupported();
+                }
+                realConnection.rollback();
+                savepoints.clear();
+            } else {
+                realConnection.rollback(savepoint);
+                discardSavepointsAfter(name, false);
+                //the savepoint survives the rollback as the standard requires, except on HSQLDB, where it is set again
+                if (isSavepointDroppedOnRollback()) {
+                    savepoints.put(name, realConnection.setSavepoint(name));
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    public void forceReleaseSavepoint(String name) throws SQLException {
+        acquire();
+        try {
+            Savepoint savepoint = savepoints.get(name);
+            if (savepoint != null) {
+                realConnection.releaseSavepoint(savepoint);
+                discardSavepointsAfter(name, true);
+                forgetEmulatedTransaction();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * @param maxCheckpoints the number of checkpoints to keep, 4 by default; when another is taken, the least recently
+     * used ones are discarded
+     */
+    public void setMaxCheckpoints(int maxCheckpoints) {
+        this.maxCheckpoints = maxCheckpoints;
+    }
+
+    /**
+     * Take a named copy of the database, as this connection sees it, if it is an embedded HSQLDB or H2 database. Does
+     * nothing for other databases.
+     *
+     * @param name the name of the checkpoint, replacing an earlier checkpoint with that name
+     */
+    public void forceCheckpoint(String name) throws SQLException {
+        acquire();
+        try {
+            if (supportsCheckpoints()) {
+                checkpoints.put(name, EngineCheckpoint.take(realConnection));
+                trimCheckpoints();
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Drop everything in the database and restore the named checkpoint, if it is an embedded HSQLDB or H2 database.
+     * This commits. Does nothing for other databases.
+     *
+     * @param name the name of a checkpoint taken before
+     * @throws SQLException if there is no checkpoint with the given name, or restoring it failed
+     */
+    public void forceRestoreCheckpoint(String name) throws SQLException {
+        acquire();
+        try {
+            if (supportsCheckpoints()) {
+                EngineCheckpoint checkpoint = checkpoints.get(name);
+                if (checkpoint == null) {
+                    throw new SQLException("no checkpoint " + name + " on connection " + getConnectionNumber()
+                            + ", it was not taken or was discarded to make room for others");
+                }
+                //the tables the statements and savepoints refer to are dropped
+                statementCache.clear();
+                resultCache.clear();
+                savepoints.clear();
+                forgetEmulatedTransaction();
+                checkpoint.restore(realConnection);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private boolean supportsCheckpoints() throws SQLException {
+        if (checkpointsSupported == null) {
+            checkpointsSupported = EngineCheckpoint.isSupported(realConnection);
+        }
+        return checkpointsSupported;
+    }
+
+    private void trimCheckpoints() {
+        Iterator<String> names = checkpoints.keySet().iterator();
+        while (checkpoints.size() > maxCheckpoints && names.hasNext()) {
+            names.next();
+            names.remove();
+        }
+    }
+
+    public CleaningSession getSession() {
+        return session;
+    }
+
+    TableSnapshots getTableSnapshots() {
+        return tableSnapshots;
+    }
+
+    /**
+     * Restore the tables that were written to since the table snapshots were last cleared.
+     */
+    public void restoreTableSnapshots() throws SQLException {
+        acquire();
+        try {
+            tableSnapshots.restore(realConnection);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean isSavepointDroppedOnRollback() throws SQLException {
+        if (savepointDroppedOnRollback == null) {
+            savepointDroppedOnRollback = realConnection.getMetaData().getDatabaseProductName().startsWith("HSQL");
+        }
+        return savepointDroppedOnRollback;
+    }
+
+    /**
+     * Forget the savepoints that were set after the given one, which the database discards on rollback and release.
+     */
+    private void discardSavepointsAfter(String name, boolean inclusive) {
+        boolean found = false;
+        Iterator<String> names = savepoints.keySet().iterator();
+        while (names.hasNext()) {
+            String current = names.next();
+            if (found || (inclusive && current.equals(name))) {
+                names.remove();
+            }
+            found = found || current.equals(name);
+        }
     }
 
 }
@@ -0,0 +1,401 @@
+package com.nedap.dbcleaner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the statements the application executes to a file, to replay them later with a {@link WorkloadReplayer}.
+ * For every statement the SQL, the values of its parameters, the number of the connection, the thread, and when and
+ * how long it executed are recorded. Queries answered from the result cache of the shared connection are not recorded,
+ * because they never reached the database.
+ *
+ * Statements are handed to a background thread that appends them to the file through a buffer, so recording hardly
+ * slows the application down. If the background thread cannot keep up, statements are dropped rather than waited
+ * for; {@link #getDropped()} tells how many. Streams and large objects are recorded as NULL.
+ *
+ * The file is binary: a header, followed by one record per statement. It is appended to, also by later runs.
+ */
+class WorkloadRecorder {
+
+    private static final Logger logger = Logger.getLogger(WorkloadRecorder.class.getName());
+    private static final int MAGIC = 0x44424357;
+    private static final int QUEUE_SIZE = 16384;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte DECIMAL = 6;
+    private static final byte STRING = 7;
+    private static final byte BYTES = 8;
+    private static final byte DATE = 9;
+    private static final byte TIME = 10;
+    private static final byte TIMESTAMP = 11;
+
+    /**
+     * The recorders of this JVM, by file
+     */
+    private static final Map<Path, WorkloadRecorder> recorders = new HashMap<Path, WorkloadRecorder>();
+    private static boolean shutdownHookAdded = false;
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    private final Thread writer;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private WorkloadRecorder(Path file) throws IOException {
+        this.file = file;
+        boolean empty = !Files.exists(file) || Files.size(file) == 0;
+        OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        if (empty) {
+            out.writeInt(MAGIC);
+        }
+        this.writer = new Thread(this::write, "dbcleaner workload recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param file a file to record to
+     * @return the recorder of this JVM that appends to the file, created first if this is the first time
+     * @throws IOException if the file could not be opened
+     */
+    static synchronized WorkloadRecorder forFile(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        WorkloadRecorder recorder = recorders.get(key);
+        if (recorder == null) {
+            recorder = new WorkloadRecorder(key);
+            recorders.put(key, recorder);
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(WorkloadRecorder::closeAll, "dbcleaner workload recorder"));
+                shutdownHookAdded = true;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Write what was recorded to the files, and close them.
+     */
+    static void closeAll() {
+        List<WorkloadRecorder> open;
+        synchronized (WorkloadRecorder.class) {
+            open = new ArrayList<WorkloadRecorder>(recorders.values());
+        }
+        for (WorkloadRecorder recorder : open) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * @return the number of statements that were not recorded, because the file could not be written fast enough
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Record an executed statement.
+     *
+     * @param connection the number of the connection that executed it
+     * @param sql the SQL
+     * @param parameters the values of the parameters by index minus one, or null if it is not a prepared statement
+     * @param startNanos the value of {@link System#nanoTime()} when it started
+     * @param nanos how long it took
+     */
+    void record(int connection, String sql, Object[] parameters, long startNanos, long nanos) {
+        Entry entry = new Entry(connection, Thread.currentThread().getName(), startNanos - this.startNanos, nanos, sql,
+                parameters);
+        if (closed || !queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop recording, and write what was recorded. Connecting with the file again starts a new recorder.
+     */
+    void close() {
+        synchronized (WorkloadRecorder.class) {
+            recorders.remove(file);
+        }
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                if (queue.drainTo(entries) == 0) {
+                    out.flush();
+                    Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (entry == null) {
+                        continue;
+                    }
+                    entries.add(entry);
+                }
+                for (Entry entry : entries) {
+                    entry.write(out);
+                }
+                entries.clear();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "could not record the workload to " + file + ", stopped recording", ex);
+            closed = true;
+        } catch (InterruptedException ex) {
+            closed = true;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                //nothing more to write
+            }
+        }
+    }
+
+    /**
+     * @param values the values of the parameters of a prepared statement by index, as recorded by the
+     * {@link PreparedStatementWrapper}
+     * @return the values by index minus one, with null for parameters that were not set, and for streams and large
+     * objects
+     */
+    static Object[] parameters(Map<Integer, Object[]> values) {
+        int count = 0;
+        for (Integer index : values.keySet()) {
+            count = Math.max(count, index);
+        }
+        Object[] parameters = new Object[count];
+        for (Map.Entry<Integer, Object[]> value : values.entrySet()) {
+            if (value.getValue() != null && value.getValue().length > 0) {
+                parameters[value.getKey() - 1] = value.getValue()[0];
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Read a recorded file.
+     *
+     * @param in the contents of the file
+     * @return reads the next statement, or returns null at the end of the file
+     * @throws IOException if the file is not a recording
+     */
+    static EntryReader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a recorded workload");
+        }
+        return () -> {
+            try {
+                return Entry.read(data);
+            } catch (EOFException ex) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reads recorded statements one by one
+     */
+    interface EntryReader {
+
+        Entry next() throws IOException;
+    }
+
+    /**
+     * A recorded statement
+     */
+    static class Entry {
+
+        final int connection;
+        final String thread;
+        /**
+         * When the statement started, since the recording started
+         */
+        final long offsetNanos;
+        final long nanos;
+        final String sql;
+        /**
+         * The values of the parameters by index minus one, or null if it was not a prepared statement
+         */
+        final Object[] parameters;
+
+        Entry(int connection, String thread, long offsetNanos, long nanos, String sql, Object[] parameters) {
+            this.connection = connection;
+            this.thread = thread;
+            this.offsetNanos = offsetNanos;
+            this.nanos = nanos;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Set the recorded parameters on a statement prepared with the recorded SQL.
+         */
+        void apply(PreparedStatement statement) throws SQLException {
+            for (int i = 0; i < parameters.length; i++) {
+                if (parameters[i] == null) {
+                    statement.setNull(i + 1, Types.VARCHAR);
+                } else {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(connection);
+            writeString(out, thread);
+            out.writeLong(offsetNanos);
+            out.writeLong(nanos);
+            writeString(out, sql);
+            out.writeInt(parameters == null ? -1 : parameters.length);
+            if (parameters != null) {
+                for (Object parameter : parameters) {
+                    writeValue(out, parameter);
+                }
+            }
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            int connection = in.readInt();
+            String thread = readString(in);
+            long offsetNanos = in.readLong();
+            long nanos = in.readLong();
+            String sql = readString(in);
+            int count = in.readInt();
+            Object[] parameters = count < 0 ? null : new Object[count];
+            for (int i = 0; i < count; i++) {
+                parameters[i] = readValue(in);
+            }
+            return new Entry(connection, thread, offsetNanos, nanos, sql, parameters);
+        }
+
+        private static void writeValue(DataOutputStream out, Object value) throws IOException {
+            if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof BigDecimal) {
+                out.writeByte(DECIMAL);
+                writeString(out, value.toString());
+            } else if (value instanceof byte[]) {
+                out.writeByte(BYTES);
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+            } else if (value instanceof Timestamp) {
+                out.writeByte(TIMESTAMP);
+                out.writeLong(((Timestamp) value).getTime());
+                out.writeInt(((Timestamp) value).getNanos());
+            } else if (value instanceof Date) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            } else if (value instanceof Time) {
+                out.writeByte(TIME);
+                out.writeLong(((Time) value).getTime());
+            } else if (value instanceof String || value instanceof Number || value instanceof UUID) {
+                out.writeByte(STRING);
+                writeString(out, value.toString());
+            } else {
+                //streams, large objects and other values that cannot be written
+                out.writeByte(NULL);
+            }
+        }
+
+        private static Object readValue(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+                case NULL:
+                    return null;
+                case BOOLEAN:
+                    return in.readBoolean();
+                case INT:
+                    return in.readInt();
+                case LONG:
+                    return in.readLong();
+                case FLOAT:
+                    return in.readFloat();
+                case DOUBLE:
+                    return in.readDouble();
+                case DECIMAL:
+                    return new BigDecimal(readString(in));
+                case STRING:
+                    return readString(in);
+                case BYTES:
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return bytes;
+                case DATE:
+                    return new Date(in.readLong());
+                case TIME:
+                    return new Time(in.readLong());
+                case TIMESTAMP:
+                    Timestamp timestamp = new Timestamp(in.readLong());
+                    timestamp.setNanos(in.readInt());
+                    return timestamp;
+                default:
+                    throw new IOException("unknown parameter type " + type + " in recorded workload");
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
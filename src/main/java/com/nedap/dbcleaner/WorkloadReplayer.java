@@ -0,0 +1,251 @@
+package com.nedap.dbcleaner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays a workload recorded with the dbcleaner.recordfile property against a database, and reports how long the
+ * statements took. Use it to compare databases, settings or versions with the statements of a real test run.
+ *
+ * Every recorded connection is replayed by one of a number of workers, each with its own connection, so the
+ * statements of a recorded connection are executed in the recorded order; the statements of different recorded
+ * connections run concurrently when they are assigned to different workers. Statements are executed as fast as
+ * possible, not at their recorded times. A statement that fails is counted and skipped.
+ *
+ * <pre>
+ * WorkloadReplayer.Report report = new WorkloadReplayer("jdbc:postgresql://localhost/test", info, 4)
+ *         .replay(Paths.get("workload.rec"));
+ * </pre>
+ */
+public class WorkloadReplayer {
+
+    private static final int QUEUE_SIZE = 1024;
+    /**
+     * Tells a worker that there are no more statements
+     */
+    private static final WorkloadRecorder.Entry END = new WorkloadRecorder.Entry(0, "", 0, 0, "", null);
+
+    private final String url;
+    private final Properties info;
+    private final int concurrency;
+
+    /**
+     * @param url the JDBC URL of the database to replay against
+     * @param info the properties to connect with
+     * @param concurrency the number of workers, each with its own connection
+     */
+    public WorkloadReplayer(String url, Properties info, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1, not " + concurrency);
+        }
+        this.url = url;
+        this.info = info;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Replay a recorded file.
+     *
+     * @param file the recording
+     * @return how many statements were executed, and how long they took
+     * @throws IOException if the file could not be read
+     * @throws SQLException if a worker could not connect
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public Report replay(Path file) throws IOException, SQLException, InterruptedException {
+        List<Worker> workers = new ArrayList<Worker>();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "dbcleaner workload replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        DurationHistogram histogram = new DurationHistogram();
+        Report report = new Report(histogram);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(new Worker(DriverManager.getConnection(url, info), histogram, report));
+            }
+            List<Future<?>> running = new ArrayList<Future<?>>();
+            for (Worker worker : workers) {
+                running.add(executor.submit(worker));
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                WorkloadRecorder.EntryReader entries = WorkloadRecorder.read(in);
+                WorkloadRecorder.Entry entry;
+                while ((entry = entries.next()) != null) {
+                    workers.get(Math.floorMod(entry.connection, concurrency)).queue.put(entry);
+                }
+            } finally {
+                for (Worker worker : workers) {
+                    worker.queue.put(END);
+                }
+                for (Future<?> future : running) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        //a worker handles its own failures
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            for (Worker worker : workers) {
+                worker.close();
+            }
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static class Worker implements Runnable {
+
+        final BlockingQueue<WorkloadRecorder.Entry> queue = new ArrayBlockingQueue<WorkloadRecorder.Entry>(QUEUE_SIZE);
+        private final Connection connection;
+        private final DurationHistogram histogram;
+        private final Report report;
+        private final Map<String, PreparedStatement> prepared = new HashMap<String, PreparedStatement>();
+
+        Worker(Connection connection, DurationHistogram histogram, Report report) {
+            this.connection = connection;
+            this.histogram = histogram;
+            this.report = report;
+        }
+
+        @Override
+        public void run() {
+            try {
+                WorkloadRecorder.Entry entry;
+                while ((entry = queue.take()) != END) {
+                    long start = System.nanoTime();
+                    try {
+                        execute(entry);
+                    } catch (SQLException | RuntimeException ex) {
+                        report.failed(entry.sql, ex);
+                    }
+                    histogram.recordSince(start);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void execute(WorkloadRecorder.Entry entry) throws SQLException {
+            if (entry.parameters == null) {
+                try (Statement statement = connection.createStatement()) {
+                    drain(statement, statement.execute(entry.sql));
+                }
+                return;
+            }
+            PreparedStatement statement = prepared.get(entry.sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(entry.sql);
+                prepared.put(entry.sql, statement);
+            }
+            entry.apply(statement);
+            drain(statement, statement.execute());
+        }
+
+        /**
+         * Read all results, because the time to fetch them is part of the time of the statement.
+         */
+        private static void drain(Statement statement, boolean isResultSet) throws SQLException {
+            while (isResultSet || statement.getUpdateCount() != -1) {
+                if (isResultSet) {
+                    try (ResultSet resultSet = statement.getResultSet()) {
+                        while (resultSet.next()) {
+                        }
+                    }
+                }
+                isResultSet = statement.getMoreResults();
+            }
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                //the replay is over
+            }
+        }
+    }
+
+    /**
+     * How many statements were replayed, and how long they took
+     */
+    public static class Report {
+
+        private final DurationHistogram histogram;
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicReference<String> firstError = new AtomicReference<String>();
+        private volatile long nanos;
+
+        Report(DurationHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        void failed(String sql, Exception ex) {
+            errors.incrementAndGet();
+            firstError.compareAndSet(null, sql + ": " + ex.getMessage());
+        }
+
+        /**
+         * @return the number of statements executed, including those that failed
+         */
+        public long getStatements() {
+            return histogram.getSnapshot().getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the SQL and message of the first statement that failed, or null if none failed
+         */
+        public String getFirstError() {
+            return firstError.get();
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        /**
+         * @return the durations of the statements
+         */
+        public DurationHistogram.Snapshot getLatencies() {
+            return histogram.getSnapshot();
+        }
+
+        @Override
+        public String toString() {
+            DurationHistogram.Snapshot latencies = getLatencies();
+            return latencies.getCount() + " statements (" + getErrors() + " failed) in " + getMillis() + " ms, p50 "
+                    + latencies.getP50Micros() + " us, p90 " + latencies.getP90Micros() + " us, p99 "
+                    + latencies.getP99Micros() + " us, max " + latencies.getMaxMicros() + " us";
+        }
+    }
+}
@@ -4,7 +4,30 @@
  */
 package com.nedap.dbcleaner;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.ObjectName;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.After;
 import org.junit.Test;
@@ -129,6 +152,1028 @@ public class DBCleanerTest {
         assertEquals("test", getName(1));
     }
 
+    @Test
+    public void testRollbackToSavepoint() throws Exception {
+        insert(1, "test");
+        TransactionUtil.startTransactions();
+        insert(2, "seed");
+        TransactionUtil.pushSavepoint("seed");
+        update(2, "scenario1");
+        TransactionUtil.rollbackToSavepoint("seed");
+        assertEquals("seed", getName(2));
+        update(2, "scenario2");
+        TransactionUtil.rollbackToSavepoint();
+        assertEquals("seed", getName(2));
+        TransactionUtil.rollbackTransactions();
+        assertEquals("test", getName(1));
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void testFailedSavepointRollbackThrows() throws Exception {
+        insert(1, "test");
+        TransactionUtil.startTransactions();
+        try {
+            TransactionUtil.pushSavepoint("seed");
+            update(1, "scenario");
+            TransactionWrappedConnection shared = TransactionWrappedConnection.getOpenConnections(CleaningSession.current()).get(0);
+            shared.getRealConnection().createStatement().execute("RELEASE SAVEPOINT \"seed\"");
+            try {
+                TransactionUtil.rollbackToSavepoint("seed");
+                fail("expected the rollback to the released savepoint to fail");
+            } catch (CleaningException ex) {
+                assertEquals(1, ex.getFailures().size());
+            }
+            assertEquals(Arrays.asList("seed"), TransactionUtil.getSavepoints());
+        } finally {
+            TransactionUtil.rollbackTransactions();
+        }
+        assertEquals("test", getName(1));
+    }
+
+    @Test
+    public void testNestedSavepoints() throws Exception {
+        connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection);
+        insert(1, "test");
+        TransactionUtil.startTransactions();
+        TransactionUtil.pushSavepoint("outer");
+        update(1, "outer");
+        TransactionUtil.pushSavepoint("inner");
+        connection2.createStatement().execute("UPDATE test SET name = 'inner' WHERE id=1");
+        assertEquals("inner", TransactionUtil.popSavepoint());
+        assertEquals("inner", getName(1));
+        TransactionUtil.rollbackToSavepoint("outer");
+        assertEquals("test", getName(1));
+        assertEquals(1, TransactionUtil.getSavepoints().size());
+        TransactionUtil.rollbackTransactions();
+        assertTrue(TransactionUtil.getSavepoints().isEmpty());
+    }
+
+    @Test
+    public void testTableSnapshotRollback() throws Exception {
+        insert(1, "test");
+        TransactionUtil.setStrategy(CleaningStrategy.TABLE_SNAPSHOT);
+        try {
+            TransactionUtil.startTransactions();
+            update(1, "name2");
+            insert(2, "second");
+            connection.createStatement().execute("CREATE TABLE other (id int)");
+            connection.createStatement().execute("INSERT INTO other VALUES (1)");
+            assertEquals("name2", getName(1));
+            TransactionUtil.rollbackTransactions();
+            assertEquals("test", getName(1));
+            assertEquals(0, count());
+            //DDL is not undone, only the rows written to the new table are
+            ResultSet other = connection.createStatement().executeQuery("SELECT COUNT(*) FROM other");
+            assertTrue(other.next());
+            assertEquals(0, other.getInt(1));
+        } finally {
+            TransactionUtil.setStrategy(CleaningStrategy.TRANSACTION);
+        }
+    }
+
+    @Test
+    public void testTableSnapshotWithForeignKeys() throws Exception {
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE parent (id int PRIMARY KEY, name varchar(255))");
+        statement.execute("CREATE TABLE child (id int PRIMARY KEY, parent_id int REFERENCES parent(id))");
+        statement.execute("INSERT INTO parent VALUES (1, 'parent')");
+        statement.execute("INSERT INTO child VALUES (1, 1)");
+        TransactionUtil.setStrategy(CleaningStrategy.TABLE_SNAPSHOT);
+        try {
+            TransactionUtil.startTransactions();
+            statement.execute("DELETE FROM child WHERE id = 1");
+            statement.execute("UPDATE parent SET name = 'changed' WHERE id = 1");
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO parent VALUES (?, ?)");
+            insert.setInt(1, 2);
+            insert.setString(2, "new");
+            insert.executeUpdate();
+            statement.execute("INSERT INTO child VALUES (2, 2)");
+            TransactionUtil.rollbackTransactions();
+        } finally {
+            TransactionUtil.setStrategy(CleaningStrategy.TRANSACTION);
+        }
+        ResultSet result = statement.executeQuery("SELECT p.name, c.id FROM parent p JOIN child c ON c.parent_id = p.id");
+        assertTrue(result.next());
+        assertEquals("parent", result.getString(1));
+        assertEquals(1, result.getInt(2));
+        assertFalse(result.next());
+    }
+
+    @Test
+    public void testSessionsAreIsolated() throws Exception {
+        insert(1, "test");
+        connection.createStatement().execute("SET DATABASE TRANSACTION CONTROL MVCC");
+        CleaningSession session = CleaningSession.get("testSessionsAreIsolated");
+        session.bind();
+        try {
+            connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection);
+            TransactionUtil.startTransactions();
+            connection2.createStatement().execute("UPDATE test SET name = 'session' WHERE id=1");
+            assertEquals(1, TransactionWrappedConnection.getOpenConnections(session).size());
+            assertEquals(1, SwitchingConnectionWrapper.getOpenConnections(session).size());
+        } finally {
+            CleaningSession.unbind();
+        }
+        ResultSet result = connection2.createStatement().executeQuery("SELECT name FROM test WHERE id = 1");
+        result.next();
+        assertEquals("session", result.getString(1));
+        assertEquals("test", getName(1));
+        session.rollbackTransactions();
+        connection2.close();
+        connection2 = null;
+        session.close();
+        assertTrue(TransactionWrappedConnection.getOpenConnections(session).isEmpty());
+        assertEquals("test", getName(1));
+    }
+
+    /**
+     * Hundreds of virtual threads contend for one shared connection whose driver blocks on every call. Waiting for the
+     * connection must not pin the few carrier threads, so an unrelated virtual thread still gets to run.
+     */
+    @Test
+    public void testVirtualThreadsDoNotPinCarriers() throws Exception {
+        Method newVirtualThreadExecutor;
+        try {
+            newVirtualThreadExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            Assume.assumeNoException("virtual threads need Java 21", ex);
+            return;
+        }
+        final TransactionWrappedConnection shared = new TransactionWrappedConnection(slowConnection(5));
+        ExecutorService executor = (ExecutorService) newVirtualThreadExecutor.invoke(null);
+        try {
+            List<Future<?>> users = new ArrayList<Future<?>>();
+            for (int i = 0; i < 300; i++) {
+                users.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return shared.isReadOnly();
+                    }
+                }));
+            }
+            Thread.sleep(50);
+            long start = System.nanoTime();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(1, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+            for (Future<?> user : users) {
+                user.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+            shared.forceClose();
+        }
+    }
+
+    @Test
+    public void testPreparedStatementSurvivesStart() throws Exception {
+        insert(1, "test");
+        //a new session, so connection2 is opened before the forced transaction starts
+        inSession("testPreparedStatementSurvivesStart", session -> {
+            connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection);
+            PreparedStatement update = connection2.prepareStatement("UPDATE test SET name = ? WHERE id = ?");
+            update.setString(1, "prepared");
+            update.setInt(2, 1);
+            PreparedStatement select = connection2.prepareStatement("SELECT name FROM test WHERE id = ?");
+            select.setMaxRows(1);
+            TransactionUtil.startTransactions();
+            assertEquals(1, update.executeUpdate());
+            select.setInt(1, 1);
+            ResultSet result = select.executeQuery();
+            assertTrue(result.next());
+            assertEquals("prepared", result.getString(1));
+            assertEquals(1, select.getMaxRows());
+            assertSame(connection2, select.getConnection());
+            TransactionUtil.rollbackTransactions();
+            connection2.close();
+            connection2 = null;
+        });
+        assertEquals("test", getName(1));
+    }
+
+    @Test
+    public void testCallableStatementSurvivesStart() throws Exception {
+        connection.createStatement().execute("CREATE PROCEDURE add_row(IN new_id INT, OUT row_count INT)"
+                + " MODIFIES SQL DATA BEGIN ATOMIC INSERT INTO test VALUES (new_id, 'called');"
+                + " SET row_count = (SELECT COUNT(*) FROM test); END");
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.statementstatistics", "true");
+        inSession("testCallableStatementSurvivesStart", session -> {
+            connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection, info);
+            CallableStatement call = connection2.prepareCall("{call add_row(?, ?)}");
+            call.setInt(1, 1);
+            call.registerOutParameter(2, Types.INTEGER);
+            TransactionUtil.startTransactions();
+            call.execute();
+            assertEquals(1, call.getInt(2));
+            StatementStatistics statistics = TransactionWrappedConnection.getOpenConnections(session).get(0)
+                    .getStatementStatistics();
+            assertTrue(statistics.getEntries().stream().anyMatch(entry -> entry.getSql().contains("add_row")));
+            TransactionUtil.rollbackTransactions();
+            connection2.close();
+            connection2 = null;
+        });
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void testAcquireTimeoutNamesHolder() throws Exception {
+        final TransactionWrappedConnection shared = new TransactionWrappedConnection(slowConnection(0));
+        shared.getScheduler().setTimeoutMillis(100);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    shared.getScheduler().acquire("SELECT * FROM slow_view");
+                    acquired.countDown();
+                    done.await();
+                    shared.getScheduler().release();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }, "holder-thread");
+        holder.start();
+        acquired.await();
+        try {
+            shared.getAutoCommit();
+            fail("expected a timeout");
+        } catch (SQLTimeoutException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("holder-thread"));
+            assertTrue(ex.getMessage(), ex.getMessage().contains("SELECT * FROM slow_view"));
+        } finally {
+            done.countDown();
+            holder.join();
+            shared.forceClose();
+        }
+    }
+
+    @Test
+    public void testStatementCacheReusesStatements() throws Exception {
+        TransactionWrappedConnection shared = new TransactionWrappedConnection(
+                DriverManager.getConnection("jdbc:hsqldb:mem:dbcleaner.db" + dbConnection));
+        StatementCache cache = shared.getStatementCache();
+        cache.setMaxSize(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                PreparedStatement statement = shared.prepareStatement("INSERT INTO test VALUES (?, 'cached')");
+                statement.setInt(1, i + 2);
+                statement.executeUpdate();
+                statement.close();
+            }
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.size());
+
+            shared.prepareStatement("SELECT * FROM test").close();
+            assertEquals(1, cache.getEvictions());
+            assertEquals(1, cache.size());
+            assertEquals(2, count());
+        } finally {
+            shared.forceClose();
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testResultCacheIsInvalidatedByWrites() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.resultcachebytes", "1000000");
+        inSession("testResultCacheIsInvalidatedByWrites", session -> {
+            Connection cached = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:results.db" + dbConnection, info);
+            cached.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            cached.createStatement().execute("INSERT INTO test VALUES (1, 'test')");
+            TransactionUtil.startTransactions();
+            ResultCache cache = TransactionWrappedConnection.getOpenConnections(session).get(0).getResultCache();
+            PreparedStatement select = cached.prepareStatement("SELECT name FROM test WHERE id = ?");
+            for (String expected : new String[]{"test", "test", "changed"}) {
+                if (expected.equals("changed")) {
+                    cached.createStatement().executeUpdate("UPDATE test SET name = 'changed'");
+                }
+                select.setInt(1, 1);
+                ResultSet result = select.executeQuery();
+                assertTrue(result.next());
+                assertEquals(expected, result.getString(1));
+                result.close();
+            }
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(1, cache.size());
+
+            TransactionUtil.rollbackTransactions();
+            assertEquals(0, cache.size());
+            cached.close();
+        });
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        String url = "jdbc:dbcleaner:hsqldb:mem:prewarm.db" + dbConnection;
+        int before = TransactionWrappedConnection.getOpenConnections().size();
+        DBCleaner.prewarm(url);
+        assertEquals(before + 1, TransactionWrappedConnection.getOpenConnections().size());
+
+        connection2 = DriverManager.getConnection(url);
+        assertEquals(before + 1, TransactionWrappedConnection.getOpenConnections().size());
+    }
+
+    @Test
+    public void testDriverCacheFollowsRegistration() throws Exception {
+        String url = "jdbc:dbcleaner:hsqldb:mem:drivers.db" + dbConnection;
+        Driver hsqldb = DriverManager.getDriver("jdbc:hsqldb:mem:drivers.db" + dbConnection);
+        DriverManager.getConnection(url).close();
+        DBCleaner.deregisterDriver(hsqldb);
+        try {
+            DriverManager.getConnection(url);
+            fail("expected no driver to accept the URL");
+        } catch (SQLException ex) {
+            //expected
+        } finally {
+            DBCleaner.registerDriver(hsqldb);
+        }
+        connection2 = DriverManager.getConnection(url);
+        assertFalse(connection2.isClosed());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        CleanerMetrics metrics = CleanerMetrics.get();
+        long swallowedCommits = metrics.getSwallowedCommits();
+        long starts = metrics.getForceStartDurations().getCount();
+        long rollbacks = metrics.getForceRollbackDurations().getCount();
+
+        TransactionUtil.startTransactions();
+        connection.commit();
+        TransactionUtil.startTransactions();//already started, not measured
+        TransactionUtil.rollbackTransactions();
+
+        assertEquals(swallowedCommits + 1, metrics.getSwallowedCommits());
+        assertEquals(starts + 1, metrics.getForceStartDurations().getCount());
+        assertEquals(rollbacks + 1, metrics.getForceRollbackDurations().getCount());
+        assertTrue(metrics.getOpenTransactionWrappedConnections() > 0);
+        assertEquals(swallowedCommits + 1, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(CleanerMetrics.OBJECT_NAME), "SwallowedCommits"));
+    }
+
+    @Test
+    public void testStatementStatistics() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.statementstatistics", "true");
+        connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection, info);
+        insert(2, "two");
+        insert(3, "three");
+        Statement statement = connection2.createStatement();
+        statement.executeQuery("SELECT * FROM test WHERE id = 2").close();
+        ResultSet result = statement.executeQuery("SELECT * FROM test WHERE id >  3 OR name = 'three'");
+        while (result.next()) {
+        }
+        result.close();
+
+        StatementStatistics statistics = TransactionWrappedConnection.getOpenConnections().stream()
+                .map(TransactionWrappedConnection::getStatementStatistics)
+                .filter(StatementStatistics::isEnabled).findFirst().get();
+        assertEquals(2, statistics.getEntries().size());
+        for (StatementStatistics.Entry entry : statistics.getEntries()) {
+            if (entry.getSql().equals("SELECT * FROM test WHERE id > ? OR name = ?")) {
+                assertEquals(1, entry.getExecutions());
+                assertEquals(1, entry.getRows());
+            } else {
+                assertEquals("SELECT * FROM test WHERE id = ?", entry.getSql());
+            }
+        }
+        statement.addBatch("INSERT INTO test VALUES (4, 'four')");
+        statement.addBatch("INSERT INTO test VALUES (5, 'five')");
+        statement.executeBatch();
+        assertTrue(statistics.getEntries().stream().anyMatch(
+                entry -> entry.getSql().equals("INSERT INTO test VALUES (?, ?)") && entry.getExecutions() == 2));
+    }
+
+    @Test
+    public void testLeakedConnectionIsReaped() throws Exception {
+        long leaked = CleanerMetrics.get().getLeakedConnections();
+        int open = SwitchingConnectionWrapper.getOpenConnections().size();
+        //a new session, so the connection is not routed to a forced transaction and opens an underlying connection
+        inSession("testLeakedConnectionIsReaped", session -> {
+            DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection);//never closed
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (CleanerMetrics.get().getLeakedConnections() == leaked && System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(10);
+            }
+        });
+        assertEquals(leaked + 1, CleanerMetrics.get().getLeakedConnections());
+        assertEquals(open, SwitchingConnectionWrapper.getOpenConnections().size());
+    }
+
+    @Test
+    public void testTwoPhaseCommit() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.xadatasource", "org.hsqldb.jdbc.pool.JDBCXADataSource");
+        info.setProperty("user", "SA");
+        inSession("testTwoPhaseCommit", session -> {
+            Connection first = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:xa1.db" + dbConnection, info);
+            Connection second = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:xa2.db" + dbConnection, info);
+            first.createStatement().execute("CREATE TABLE test (id int)");
+            second.createStatement().execute("CREATE TABLE test (id int)");
+            TransactionUtil.startTransactions();
+            first.createStatement().executeUpdate("INSERT INTO test VALUES (1)");
+            second.createStatement().executeUpdate("INSERT INTO test VALUES (2)");
+            TransactionUtil.commitTransactions();
+
+            for (TransactionWrappedConnection shared : TransactionWrappedConnection.getOpenConnections(session)) {
+                assertTrue(shared.supportsTwoPhaseCommit());
+            }
+            assertEquals(1, countRows(DriverManager.getConnection("jdbc:hsqldb:mem:xa1.db" + dbConnection, "SA", "")));
+            assertEquals(1, countRows(DriverManager.getConnection("jdbc:hsqldb:mem:xa2.db" + dbConnection, "SA", "")));
+        });
+    }
+
+    @Test
+    public void testXaConnectionsRefuseSavepoints() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.xadatasource", "org.hsqldb.jdbc.pool.JDBCXADataSource");
+        info.setProperty("user", "SA");
+        inSession("testXaConnectionsRefuseSavepoints", session -> {
+            Connection plain = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:xaplain.db" + dbConnection);
+            TransactionUtil.startTransactions();
+            TransactionUtil.pushSavepoint("seed");
+            //opened after the savepoint was set, and a local rollback of its transaction branch is not allowed
+            Connection late = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:xalate.db" + dbConnection, info);
+            try {
+                TransactionUtil.rollbackToSavepoint("seed");
+                fail("expected the XA connection to refuse the rollback");
+            } catch (CleaningException ex) {
+                assertEquals(1, ex.getFailures().size());
+                assertTrue(ex.getMessage().contains("XA connection"));
+            }
+            try {
+                TransactionUtil.pushSavepoint("again");
+                fail("expected the XA connection to refuse the savepoint");
+            } catch (CleaningException ex) {
+                assertTrue(ex.getMessage().contains("XA connection"));
+            }
+            assertEquals(Arrays.asList("seed"), TransactionUtil.getSavepoints());
+            TransactionUtil.commitTransactions();
+            late.close();
+            plain.close();
+        });
+    }
+
+    @Test
+    public void testRollbackReportsAllFailures() throws Exception {
+        inSession("testRollbackReportsAllFailures", session -> {
+            //held here, so they are not collected before the rollback
+            List<Connection> failing = new ArrayList<Connection>();
+            failing.add(new TransactionWrappedConnection(failingConnection()));
+            failing.add(new TransactionWrappedConnection(failingConnection()));
+            connection2 = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection);
+            TransactionUtil.startTransactions();
+            connection2.createStatement().execute("INSERT INTO test VALUES (2, 'rolled back')");
+            try {
+                TransactionUtil.rollbackTransactions();
+                fail("expected the failing connections to be reported");
+            } catch (CleaningException ex) {
+                assertEquals(2, ex.getFailures().size());
+            }
+            TransactionUtil.rollbackTransactions();//already rolled back, nothing to report
+            assertEquals(0, count());
+            assertEquals(2, failing.size());
+        });
+    }
+
+    @Test
+    public void testUncheckedFailureDoesNotSkipConnections() throws Exception {
+        List<Integer> connections = Arrays.asList(0, 1, 2);
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        ParallelForce.Step<Integer> step = number -> {
+            if (number < 2) {
+                throw new IllegalStateException("broken connection " + number);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            applied.add(number);
+        };
+        List<SQLException> failures = ParallelForce.onAll(connections, step);
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(0).getCause() instanceof IllegalStateException);
+        //onAll waits for the slow connection, also when the caller's own connection failed
+        assertEquals(Arrays.asList(2), applied);
+        applied.clear();
+        assertEquals(2, ParallelForce.onEach(connections, step).size());
+        assertEquals(Arrays.asList(2), applied);
+    }
+
+    @Test
+    public void testPipelinedRollback() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.pipelinedrollback", "true");
+        inSession("testPipelinedRollback", session -> {
+            Connection pipelined = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:pipelined.db" + dbConnection, info);
+            pipelined.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            pipelined.createStatement().execute("INSERT INTO test VALUES (1, 'test')");
+            PreparedStatement select = pipelined.prepareStatement("SELECT name FROM test WHERE id = ?");
+            select.setInt(1, 1);
+            TransactionWrappedConnection shared = TransactionWrappedConnection.getOpenConnections(session).get(0);
+
+            for (int i = 0; i < 3; i++) {
+                TransactionUtil.startTransactions();
+                pipelined.createStatement().execute("UPDATE test SET name = 'changed' WHERE id = 1");
+                Connection before = shared.getRealConnection();
+                TransactionUtil.rollbackTransactions();
+                assertNotSame(before, shared.getRealConnection());
+                ResultSet result = select.executeQuery();
+                assertTrue(result.next());
+                assertEquals("test", result.getString(1));
+                result.close();
+            }
+            pipelined.close();
+        });
+    }
+
+    @Test
+    public void testLazyConnect() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.lazyconnect", "true");
+        inSession("testLazyConnect", session -> {
+            String url = "jdbc:dbcleaner:hsqldb:mem:lazy.db" + dbConnection;
+            Connection used = DriverManager.getConnection(url, info);
+            used.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            int sessions = countSessions(used);
+
+            SwitchingConnectionWrapper idle = (SwitchingConnectionWrapper) DriverManager.getConnection(url, info);
+            idle.setAutoCommit(false);
+            assertFalse(idle.getAutoCommit());
+            assertTrue(idle.isValid(1));
+            assertEquals(sessions, countSessions(used));
+
+            TransactionUtil.startTransactions();
+            TransactionWrappedConnection shared = TransactionWrappedConnection.getOpenConnections(session).get(0);
+            idle.createStatement().execute("INSERT INTO test VALUES (1, 'test')");
+            assertSame(shared, idle.getRealConnection());
+            TransactionUtil.rollbackTransactions();
+            idle.close();
+            used.close();
+        });
+    }
+
+    private static int countSessions(Connection connection) throws SQLException {
+        ResultSet result = connection.createStatement().executeQuery(
+                "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_SESSIONS");
+        result.next();
+        return result.getInt(1);
+    }
+
+    @Test
+    public void testFixtureLoaderBatchesInserts() throws Exception {
+        Path script = Files.createTempFile("fixture", ".sql");
+        try {
+            inSession("testFixtureLoaderBatchesInserts", session -> {
+                StringBuilder sql = new StringBuilder("-- seed data\nCREATE TABLE test (id int, name varchar(255));\n");
+                sql.append("INSERT INTO test VALUES (0, 'it''s; /* not a comment */');\n");
+                for (int i = 1; i < 1200; i++) {
+                    sql.append("/* row */ INSERT INTO test VALUES (").append(i).append(", 'row ").append(i).append("');\n");
+                }
+                Files.write(script, sql.toString().getBytes("UTF-8"));
+                Connection seeded = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:fixture.db" + dbConnection);
+                TransactionUtil.startTransactions();
+
+                List<Integer> batches = new ArrayList<Integer>();
+                FixtureLoader.Result result = new FixtureLoader().load(batchCountingConnection(seeded, batches), script);
+                assertEquals(1201, result.getStatements());
+                assertEquals(1200, result.getRows());
+                assertEquals(Arrays.asList(500, 500, 200), batches);
+                ResultSet names = seeded.createStatement().executeQuery("SELECT name FROM test WHERE id = 0");
+                assertTrue(names.next());
+                assertEquals("it's; /* not a comment */", names.getString(1));
+                TransactionUtil.rollbackTransactions();
+                seeded.close();
+            });
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    @Test
+    public void testControlClientCleansOtherJvm() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.controlport", Integer.toString(port));
+        try {
+            inSession("testControlClientCleansOtherJvm", session -> {
+                try (Connection controlled = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:control.db" + dbConnection, info);
+                        ControlClient control = new ControlClient(port, session.getId())) {
+                    controlled.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+                    assertEquals(CleaningState.FORCED, control.start());
+                    controlled.createStatement().execute("INSERT INTO test VALUES (1, 'test')");
+                    assertEquals(CleaningState.FORCED, control.status());
+                    assertEquals(CleaningState.IDLE, control.rollback());
+                    ResultSet result = controlled.createStatement().executeQuery("SELECT COUNT(*) FROM test");
+                    assertTrue(result.next());
+                    assertEquals(0, result.getInt(1));
+                }
+                try (ControlClient mistyped = new ControlClient(port, "testControlClientCleansOtherJVM")) {
+                    mistyped.status();
+                    fail("an unknown session must be refused");
+                } catch (IOException ex) {
+                    assertTrue(ex.getMessage().contains("unknown session"));
+                }
+                assertNull(CleaningSession.find("testControlClientCleansOtherJVM"));
+            });
+        } finally {
+            ControlListener.close(port);
+        }
+    }
+
+    @Test
+    public void testInvalidPropertyLeavesNoConnectionBehind() throws Exception {
+        int open = TransactionWrappedConnection.getOpenConnections().size();
+        String[][] invalid = {{"dbcleaner.statementcachesize", "many"}, {"dbcleaner.verifyrollback", "checksum"}};
+        for (String[] property : invalid) {
+            Properties info = new Properties();
+            info.setProperty(property[0], property[1]);
+            try {
+                DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:invalid.db" + dbConnection, info);
+                fail("expected " + property[0] + "=" + property[1] + " to be refused");
+            } catch (SQLException ex) {
+                assertTrue(ex.getMessage().contains(property[0]));
+            }
+            assertEquals(open, TransactionWrappedConnection.getOpenConnections().size());
+        }
+    }
+
+    @Test
+    public void testVerifiedRollbackReportsImplicitCommit() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.verifyrollback", "counts");
+        inSession("testVerifiedRollbackReportsImplicitCommit", session -> {
+            Connection verified = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:verified.db" + dbConnection, info);
+            verified.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            TransactionUtil.startTransactions();
+            verified.createStatement().execute("INSERT INTO test VALUES (1, 'test')");
+            TransactionUtil.rollbackTransactions();
+
+            TransactionUtil.startTransactions();
+            verified.createStatement().execute("INSERT INTO test VALUES (2, 'leaked')");
+            //DDL commits the insert
+            verified.createStatement().execute("CREATE TABLE other (id int)");
+            try {
+                TransactionUtil.rollbackTransactions();
+                fail("expected the committed insert to be reported");
+            } catch (CleaningException ex) {
+                RollbackLeakException leak = (RollbackLeakException) ex.getFailures().get(0);
+                assertEquals("test", leak.getTable());
+                assertEquals("INSERT INTO test VALUES (2, 'leaked')", leak.getStatement());
+                assertTrue(leak.getMessage().contains("CREATE TABLE other"));
+            }
+            verified.close();
+        });
+    }
+
+    @Test
+    public void testRecordedWorkloadIsReplayed() throws Exception {
+        Path file = Files.createTempFile("workload", ".rec");
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.recordfile", file.toString());
+        info.setProperty("dbcleaner.resultcachebytes", "1000000");
+        try {
+            inSession("testRecordedWorkloadIsReplayed", session -> {
+                Connection recorded = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:recorded.db" + dbConnection, info);
+                recorded.createStatement().execute("CREATE TABLE test (id int, name varchar(255), created timestamp)");
+                PreparedStatement insert = recorded.prepareStatement("INSERT INTO test VALUES (?, ?, ?)");
+                for (int i = 1; i <= 2; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, "batched" + i);
+                    insert.setTimestamp(3, new Timestamp(1000L * i));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                insert.setInt(1, 3);
+                insert.setNull(2, Types.VARCHAR);
+                insert.setTimestamp(3, null);
+                insert.executeUpdate();
+                TransactionUtil.startTransactions();
+                recorded.createStatement().executeQuery("SELECT * FROM test").close();
+                //answered from the result cache, so not recorded
+                recorded.createStatement().executeQuery("SELECT * FROM test").close();
+                TransactionUtil.rollbackTransactions();
+                recorded.close();
+                WorkloadRecorder.forFile(file).close();
+
+                WorkloadReplayer.Report report = new WorkloadReplayer("jdbc:hsqldb:mem:replayed.db" + dbConnection,
+                        new Properties(), 2).replay(file);
+                assertEquals(5, report.getStatements());
+                assertEquals(report.getFirstError(), 0, report.getErrors());
+                assertTrue(report.getLatencies().getP99Micros() >= report.getLatencies().getP50Micros());
+
+                Connection replayed = DriverManager.getConnection("jdbc:hsqldb:mem:replayed.db" + dbConnection, "SA", "");
+                ResultSet result = replayed.createStatement().executeQuery("SELECT id, name, created FROM test ORDER BY id");
+                assertTrue(result.next());
+                assertEquals("batched1", result.getString(2));
+                assertEquals(new Timestamp(1000L), result.getTimestamp(3));
+                assertTrue(result.next());
+                assertTrue(result.next());
+                assertNull(result.getString(2));
+                assertFalse(result.next());
+                replayed.createStatement().execute("SHUTDOWN");
+            });
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testEmulatedTransactions() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.emulatetransactions", "true");
+        inSession("testEmulatedTransactions", session -> {
+            Connection application = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:emulated.db" + dbConnection, info);
+            application.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            TransactionUtil.startTransactions();
+            application.setAutoCommit(false);
+            application.createStatement().execute("INSERT INTO test VALUES (1, 'committed')");
+            application.commit();
+            application.createStatement().execute("INSERT INTO test VALUES (2, 'rolled back')");
+            application.rollback();
+            assertFalse(application.getAutoCommit());
+
+            ResultSet result = application.createStatement().executeQuery("SELECT id FROM test");
+            assertTrue(result.next());
+            assertEquals(1, result.getInt(1));
+            assertFalse(result.next());
+            TransactionUtil.rollbackTransactions();
+            assertEquals(0, countRows(application));
+        });
+    }
+
+    @Test
+    public void testOverlappingEmulatedTransactionsAreRefused() throws Exception {
+        Properties info = new Properties();
+        info.setProperty("dbcleaner.emulatetransactions", "true");
+        inSession("testOverlappingEmulatedTransactionsAreRefused", session -> {
+            String url = "jdbc:dbcleaner:hsqldb:mem:overlapping.db" + dbConnection;
+            Connection first = DriverManager.getConnection(url, info);
+            Connection second = DriverManager.getConnection(url, info);
+            first.createStatement().execute("CREATE TABLE test (id int, name varchar(255))");
+            TransactionUtil.startTransactions();
+            TransactionUtil.pushSavepoint("seed");
+            first.setAutoCommit(false);
+            second.setAutoCommit(false);
+            first.createStatement().execute("INSERT INTO test VALUES (1, 'first')");
+            try {
+                second.createStatement().execute("INSERT INTO test VALUES (2, 'second')");
+                fail("expected the second transaction to be refused while the first is open");
+            } catch (SQLException ex) {
+                assertTrue(ex.getMessage().contains("cannot overlap"));
+            }
+            try {
+                TransactionUtil.pushSavepoint("scenario");
+                fail("expected the savepoint to be refused while a transaction is open");
+            } catch (CleaningException ex) {
+                assertEquals(Arrays.asList("seed"), TransactionUtil.getSavepoints());
+            }
+            first.commit();
+            second.createStatement().execute("INSERT INTO test VALUES (2, 'second')");
+            second.rollback();
+            assertEquals(1, countRows(DriverManager.getConnection(url, info)));
+            //the savepoint of the session survived the transactions of both connections
+            TransactionUtil.rollbackToSavepoint("seed");
+            assertEquals(0, countRows(DriverManager.getConnection(url, info)));
+            TransactionUtil.rollbackTransactions();
+            first.close();
+            second.close();
+        });
+    }
+
+    @Test
+    public void testTemplateIsClonedPerWorker() throws Exception {
+        Connection template = DriverManager.getConnection("jdbc:hsqldb:mem:template.db" + dbConnection, "SA", "");
+        template.createStatement().execute("CREATE TABLE test (id int PRIMARY KEY, name varchar(255))");
+        template.createStatement().execute("INSERT INTO test VALUES (1, 'template')");
+        try {
+            inSession("testTemplateIsClonedPerWorker", session -> {
+                Connection clone = DriverManager.getConnection("jdbc:dbcleaner:template:hsqldb:mem:template.db" + dbConnection);
+                assertTrue(clone.getMetaData().getURL().endsWith("_" + TemplateClones.workerId()));
+                clone.createStatement().execute("INSERT INTO test VALUES (2, 'clone')");
+                ResultSet result = clone.createStatement().executeQuery("SELECT COUNT(*) FROM test");
+                result.next();
+                assertEquals(2, result.getInt(1));
+                clone.close();
+            });
+        } finally {
+            DBCleaner.dropTemplateClones();
+        }
+        assertEquals(1, countRows(template));
+    }
+
+    @Test
+    public void testCheckpointSurvivesDdl() throws Exception {
+        inSession("testCheckpointSurvivesDdl", session -> {
+            Connection embedded = DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:checkpoint.db" + dbConnection);
+            Statement statement = embedded.createStatement();
+            statement.execute("CREATE TABLE test (id int PRIMARY KEY, name varchar(255))");
+            statement.execute("INSERT INTO test VALUES (1, 'seed')");
+            TransactionUtil.checkpoint("seed");
+
+            statement.execute("INSERT INTO test VALUES (2, 'scenario')");
+            statement.execute("CREATE TABLE other (id int)");
+            TransactionUtil.restore("seed");
+
+            statement = embedded.createStatement();
+            ResultSet result = statement.executeQuery("SELECT name FROM test");
+            assertTrue(result.next());
+            assertEquals("seed", result.getString(1));
+            assertFalse(result.next());
+            try {
+                statement.execute("SELECT * FROM other");
+                fail("the table created after the checkpoint should be gone");
+            } catch (SQLException ex) {
+                //expected
+            }
+            try {
+                TransactionUtil.restore("unknown");
+                fail("expected an unknown checkpoint to be reported");
+            } catch (CleaningException ex) {
+                assertEquals(1, ex.getFailures().size());
+            }
+            embedded.close();
+        });
+    }
+
+    @Test
+    public void testListenerSeesStateChanges() throws Exception {
+        CleaningSession session = CleaningSession.get("testListenerSeesStateChanges");
+        final List<String> transitions = new ArrayList<String>();
+        session.addListener((changed, from, to) -> transitions.add(from + ">" + to));
+        try {
+            assertEquals(CleaningState.IDLE, session.getState());
+            assertFalse(session.isInForcedTransaction());
+            session.startTransactions();
+            assertEquals(CleaningState.FORCED, session.getState());
+            session.rollbackTransactions();
+            //idle again, but connections stay routed through the shared connection
+            assertTrue(session.isInForcedTransaction());
+            session.startTransactions();
+            session.commitTransactions();
+            assertEquals(CleaningState.COMMITTED, session.getState());
+            assertEquals(Arrays.asList("IDLE>STARTING", "STARTING>FORCED", "FORCED>ROLLING_BACK", "ROLLING_BACK>IDLE",
+                    "IDLE>STARTING", "STARTING>FORCED", "FORCED>COMMITTING", "COMMITTING>COMMITTED"), transitions);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testConnectDoesNotWaitForSharedConnection() throws Exception {
+        TransactionWrappedConnection shared = TransactionWrappedConnection.getOpenConnections(CleaningSession.current()).get(0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        shared.getScheduler().acquire("a long rollback");
+        try {
+            Future<Connection> connecting = executor.submit(
+                    () -> DriverManager.getConnection("jdbc:dbcleaner:hsqldb:mem:dbcleaner.db" + dbConnection));
+            connecting.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            shared.getScheduler().release();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testClosedCheckIgnoresAcquireTimeout() throws Exception {
+        TransactionWrappedConnection shared = TransactionWrappedConnection.getOpenConnections(CleaningSession.current()).get(0);
+        shared.getScheduler().setTimeoutMillis(50);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        shared.getScheduler().acquire("a long rollback");
+        try {
+            assertFalse(executor.submit(shared::isClosed).get(5, TimeUnit.SECONDS));
+            assertNotNull(executor.submit(shared::getMetaData).get(5, TimeUnit.SECONDS));
+        } finally {
+            shared.getScheduler().release();
+            shared.getScheduler().setTimeoutMillis(0);
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A test body that runs with a cleaning session bound to the thread
+     */
+    private interface SessionTest {
+
+        void run(CleaningSession session) throws Exception;
+    }
+
+    /**
+     * Run the test body with the cleaning session of the given name bound to the thread, then unbind and close the
+     * session, also when the body fails.
+     */
+    private static void inSession(String name, SessionTest test) throws Exception {
+        CleaningSession session = CleaningSession.get(name);
+        session.bind();
+        try {
+            test.run(session);
+        } finally {
+            CleaningSession.unbind();
+            session.close();
+        }
+    }
+
+    private static int countRows(Connection raw) throws SQLException {
+        try {
+            ResultSet result = raw.createStatement().executeQuery("SELECT COUNT(*) FROM test");
+            result.next();
+            return result.getInt(1);
+        } finally {
+            raw.close();
+        }
+    }
+
+    /**
+     * @return a connection that fails to roll back
+     */
+    private static Connection failingConnection() {
+        return (Connection) Proxy.newProxyInstance(DBCleanerTest.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("rollback")) {
+                            throw new SQLException("rollback failed");
+                        }
+                        return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+    }
+
+    /**
+     * @return a connection that forwards to the given connection, and adds the number of statements of every batch
+     * executed by its statements to the given list
+     */
+    private static Connection batchCountingConnection(final Connection connection, final List<Integer> batches) {
+        return (Connection) Proxy.newProxyInstance(DBCleanerTest.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = forward(connection, method, args);
+                        if (!method.getName().equals("createStatement")) {
+                            return result;
+                        }
+                        final Statement statement = (Statement) result;
+                        return Proxy.newProxyInstance(DBCleanerTest.class.getClassLoader(),
+                                new Class[]{Statement.class}, new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                        Object executed = forward(statement, method, args);
+                                        if (method.getName().equals("executeBatch")) {
+                                            batches.add(((int[]) executed).length);
+                                        }
+                                        return executed;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * @return a connection that sleeps for the given time on every call and then returns a default value
+     */
+    private static Connection slowConnection(final long millis) {
+        return (Connection) Proxy.newProxyInstance(DBCleanerTest.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Thread.sleep(millis);
+                        Class<?> type = method.getReturnType();
+                        if (type == boolean.class) {
+                            return false;
+                        } else if (type == int.class) {
+                            return 0;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private int count() throws Exception {
+        ResultSet result = connection.createStatement().executeQuery("SELECT COUNT(*) FROM test WHERE id <> 1;");
+        result.next();
+        return result.getInt(1);
+    }
+
     private void insert(int id, String name) throws Exception {
         Statement statement = connection.createStatement();
 